@@ -16,31 +16,79 @@
 
 package ch.jamiete.hilda.music;
 
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
-import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
 import net.dv8tion.jda.api.audio.AudioSendHandler;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * Feeds Opus frames from an {@link AudioPlayer} to JDA. <p>
+ * A single {@link MutableAudioFrame} backed by a preallocated buffer is reused for every frame, so steady-state playback does not allocate.
+ * A frame fetched by {@link #canProvide()} is handed out by exactly one subsequent {@link #provide20MsAudio()} call.
  * @author sedmelluq
  * https://github.com/sedmelluq/lavaplayer/blob/master/demo-jda/src/main/java/com/sedmelluq/discord/lavaplayer/demo/jda/AudioPlayerSendHandler.java
  */
 class AudioPlayerSendHandler implements AudioSendHandler {
-    private final AudioPlayer audioPlayer;
-    private AudioFrame lastFrame = null;
+    private volatile AudioPlayer audioPlayer;
+    private final ByteBuffer buffer;
+    private final MutableAudioFrame frame;
+    private boolean pending = false;
+
+    private volatile long last = 0L;
+    private volatile long transition = 0L;
+    private volatile long gap = -1L;
+
+    private final AtomicReference<FrameCache.Recorder> recorder = new AtomicReference<>();
 
     AudioPlayerSendHandler(final AudioPlayer audioPlayer) {
         this.audioPlayer = audioPlayer;
+        this.buffer = ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize());
+        this.frame = new MutableAudioFrame();
+        this.frame.setBuffer(this.buffer);
     }
 
     @Override
     public final boolean canProvide() {
-        if (this.lastFrame == null) {
-            this.lastFrame = this.audioPlayer.provide();
+        if (!this.pending) {
+            ((Buffer) this.buffer).clear();
+
+            if (this.audioPlayer.provide(this.frame)) {
+                ((Buffer) this.buffer).flip();
+                this.pending = true;
+
+                final long now = System.nanoTime();
+
+                if (this.transition != 0L) {
+                    this.gap = now - this.transition;
+                    this.transition = 0L;
+                }
+
+                this.last = now;
+
+                final FrameCache.Recorder recorder = this.recorder.get();
+
+                // Frames at any other volume have been re-encoded and do not match the source. Only the recorder that was written to is
+                // stopped, in case another has been started since
+                if ((recorder != null) && ((this.audioPlayer.getVolume() != 100) || !recorder.write(this.buffer, this.frame.getTimecode())) && this.recorder.compareAndSet(recorder, null)) {
+                    recorder.abort();
+                }
+            }
         }
 
-        return this.lastFrame != null;
+        return this.pending;
+    }
+
+    /**
+     * Gets the silence between the last frame of the previous track and the first frame of the next, as measured at the most recent transition.
+     * @return The gap in milliseconds or {@code -1} if no transition has been measured.
+     */
+    final long getGap() {
+        return (this.gap < 0L) ? -1L : TimeUnit.NANOSECONDS.toMillis(this.gap);
     }
 
     @Override
@@ -50,6 +98,52 @@ class AudioPlayerSendHandler implements AudioSendHandler {
 
     @Override
     public final ByteBuffer provide20MsAudio() {
-        return ByteBuffer.wrap(lastFrame.getData());
+        if (!this.canProvide()) {
+            return null;
+        }
+
+        this.pending = false;
+        return this.buffer;
+    }
+
+    /**
+     * Marks that one track has ended and the next is about to start, so the silence until the next frame is measured.
+     */
+    final void markTransition() {
+        if (this.last != 0L) {
+            this.transition = this.last;
+        }
+    }
+
+    /**
+     * Commits the recording of the track that just finished, if there is one. The recording is stored in the background.
+     * @param then A task to run on the frame cache's writer thread once the recording is stored.
+     */
+    final void commit(final Runnable then) {
+        final FrameCache.Recorder recorder = this.recorder.getAndSet(null);
+
+        if (recorder != null) {
+            recorder.commit(then);
+        }
+    }
+
+    /**
+     * Starts recording the frames provided, aborting any recording in progress.
+     * @param recorder The recorder to write frames to or {@code null} to stop recording.
+     */
+    final void record(final FrameCache.Recorder recorder) {
+        final FrameCache.Recorder previous = this.recorder.getAndSet(recorder);
+
+        if (previous != null) {
+            previous.abort();
+        }
+    }
+
+    /**
+     * Switches the player frames are provided from. Any frame already taken from the previous player is still sent.
+     * @param player The player to provide frames from.
+     */
+    final void setPlayer(final AudioPlayer player) {
+        this.audioPlayer = player;
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.nio.ByteBuffer;
+import com.sedmelluq.discord.lavaplayer.container.common.OpusPacketRouter;
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+
+/**
+ * A track that plays a stream from its {@link BroadcastHub} broadcast, starting at the live edge. Frames pass straight through to the player
+ * unless it needs to apply volume, in which case only that player decodes them.
+ */
+class BroadcastAudioTrack extends BaseAudioTrack {
+    /**
+     * The sample rate of broadcast frames.
+     */
+    private static final int FREQUENCY = 48000;
+    /**
+     * The number of channels in broadcast frames.
+     */
+    private static final int CHANNELS = 2;
+
+    private final BroadcastHub hub;
+    private final AudioTrack source;
+
+    /**
+     * @param hub The hub to subscribe through.
+     * @param source The stream, which is never played itself.
+     */
+    BroadcastAudioTrack(final BroadcastHub hub, final AudioTrack source) {
+        super(source.getInfo());
+        this.hub = hub;
+        this.source = source;
+    }
+
+    @Override
+    protected AudioTrack makeShallowClone() {
+        return new BroadcastAudioTrack(this.hub, this.source);
+    }
+
+    @Override
+    public void process(final LocalAudioTrackExecutor executor) throws Exception {
+        final BroadcastHub.Broadcast broadcast = this.hub.join(this.source);
+        final OpusPacketRouter router = new OpusPacketRouter(executor.getProcessingContext(), BroadcastAudioTrack.FREQUENCY, BroadcastAudioTrack.CHANNELS);
+        final ByteBuffer packet = ByteBuffer.allocateDirect(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize());
+
+        try {
+            executor.executeProcessingLoop(() -> {
+                long cursor = broadcast.getLive();
+
+                while ((cursor = broadcast.read(cursor, packet)) != -1L) {
+                    router.process(packet);
+                    cursor++;
+                }
+
+                router.flush();
+            }, null);
+        } finally {
+            router.close();
+            broadcast.leave();
+        }
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Shares live streams between servers. The first server to play a stream starts a single upstream player for it; every server playing the
+ * same stream then reads its frames from a ring buffer through its own cursor, so the stream is downloaded and decoded once however many
+ * guilds are listening. <p>
+ * Each subscriber is still an ordinary track on its server's player, because that keeps track events and volume working. lavaplayer runs every
+ * playing track on its own executor thread, so a subscriber's thread waits in {@link Broadcast#read(long, ByteBuffer)} for the next frame
+ * rather than polling the ring.
+ */
+class BroadcastHub {
+    /**
+     * The number of frames kept for subscribers that fall behind.
+     */
+    static final int RING = 250; // 5 seconds
+    /**
+     * The milliseconds between drains of an upstream player.
+     */
+    private static final long PUMP_INTERVAL = 20L;
+
+    private final AudioPlayerManager manager;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentMap<String, Broadcast> broadcasts = new ConcurrentHashMap<>();
+
+    /**
+     * @param manager The manager upstream players are created from.
+     * @param executor The executor upstream players are drained on.
+     */
+    BroadcastHub(final AudioPlayerManager manager, final ScheduledExecutorService executor) {
+        this.manager = manager;
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the number of streams currently being broadcast.
+     * @return The number of upstream players.
+     */
+    int getBroadcasts() {
+        return this.broadcasts.size();
+    }
+
+    /**
+     * Gets the number of tracks currently reading from a broadcast.
+     * @return The number of subscribers.
+     */
+    int getSubscribers() {
+        int subscribers = 0;
+
+        for (final Broadcast broadcast : this.broadcasts.values()) {
+            subscribers += broadcast.getSubscribers();
+        }
+
+        return subscribers;
+    }
+
+    /**
+     * Ends every broadcast, stopping its upstream player and pump.
+     */
+    void shutdown() {
+        for (final Broadcast broadcast : this.broadcasts.values()) {
+            broadcast.end();
+        }
+    }
+
+    /**
+     * Subscribes to the broadcast of a stream, starting one if there is none.
+     * @param source The stream. It is cloned for the upstream player and not played itself.
+     * @return The broadcast, which the caller must {@link Broadcast#leave()}.
+     */
+    Broadcast join(final AudioTrack source) {
+        while (true) {
+            Broadcast broadcast = this.broadcasts.get(source.getIdentifier());
+
+            if (broadcast == null) {
+                // Built outside the map and only started once published, so a broadcast that loses the race never opens the stream
+                final Broadcast created = new Broadcast(source.getIdentifier());
+                broadcast = this.broadcasts.putIfAbsent(created.key, created);
+
+                if (broadcast == null) {
+                    broadcast = created;
+                    created.start(source.makeClone());
+                }
+            }
+
+            if (broadcast.join()) {
+                return broadcast;
+            }
+
+            // It ended between lookup and join
+            this.broadcasts.remove(broadcast.key, broadcast);
+        }
+    }
+
+    /**
+     * Wraps a stream so that playing it subscribes to its broadcast instead of opening the stream directly.
+     * @param source The stream.
+     * @return The track to play.
+     */
+    AudioTrack open(final AudioTrack source) {
+        return new BroadcastAudioTrack(this, source);
+    }
+
+    /**
+     * A single upstream player and the ring of frames it has produced.
+     */
+    final class Broadcast implements Runnable {
+        private final String key;
+        private final ByteBuffer buffer;
+        private final MutableAudioFrame frame;
+        private AudioPlayer upstream = null;
+        private ScheduledFuture<?> pump = null;
+
+        private final byte[][] ring = new byte[BroadcastHub.RING][];
+        private final int[] lengths = new int[BroadcastHub.RING];
+        private long produced = 0L;
+        private int subscribers = 0;
+        private boolean ended = false;
+
+        private Broadcast(final String key) {
+            this.key = key;
+            this.buffer = ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize());
+            this.frame = new MutableAudioFrame();
+            this.frame.setBuffer(this.buffer);
+        }
+
+        /**
+         * Starts the upstream player and its pump. Called once the broadcast has been published.
+         * @param track The stream to play upstream.
+         */
+        private synchronized void start(final AudioTrack track) {
+            if (this.ended) {
+                return;
+            }
+
+            Hilda.getLogger().fine("Starting broadcast of " + this.key);
+
+            this.upstream = BroadcastHub.this.manager.createPlayer();
+            this.upstream.playTrack(track);
+
+            try {
+                this.pump = BroadcastHub.this.executor.scheduleAtFixedRate(this, BroadcastHub.PUMP_INTERVAL, BroadcastHub.PUMP_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                // The hub has been shut down with the plugin
+                this.end();
+            }
+        }
+
+        /**
+         * Stops the upstream player and wakes any subscribers waiting for frames.
+         */
+        private synchronized void end() {
+            if (this.ended) {
+                return;
+            }
+
+            Hilda.getLogger().fine("Ending broadcast of " + this.key);
+
+            this.ended = true;
+
+            if (this.pump != null) {
+                this.pump.cancel(false);
+            }
+
+            if (this.upstream != null) {
+                this.upstream.destroy();
+            }
+
+            BroadcastHub.this.broadcasts.remove(this.key, this);
+            this.notifyAll();
+        }
+
+        /**
+         * Gets the position a new subscriber starts reading from.
+         * @return The sequence number of the next frame to be produced.
+         */
+        synchronized long getLive() {
+            return this.produced;
+        }
+
+        synchronized int getSubscribers() {
+            return this.subscribers;
+        }
+
+        /**
+         * Adds a subscriber.
+         * @return Whether the broadcast is still running.
+         */
+        private synchronized boolean join() {
+            if (this.ended) {
+                return false;
+            }
+
+            this.subscribers++;
+            return true;
+        }
+
+        /**
+         * Removes a subscriber, ending the broadcast if it was the last.
+         */
+        synchronized void leave() {
+            this.subscribers--;
+
+            if (this.subscribers == 0) {
+                this.end();
+            }
+        }
+
+        /**
+         * Copies a frame into a buffer, waiting for it to be produced. A cursor that has fallen further behind than the ring holds skips ahead.
+         * @param cursor The sequence number of the frame wanted.
+         * @param into The buffer to copy into, which is flipped ready to read.
+         * @return The sequence number of the frame copied, or {@code -1} if the broadcast has ended.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        synchronized long read(final long cursor, final ByteBuffer into) throws InterruptedException {
+            while (!this.ended && (cursor >= this.produced)) {
+                this.wait();
+            }
+
+            if (cursor >= this.produced) {
+                return -1L;
+            }
+
+            final long sequence = Math.max(cursor, this.produced - BroadcastHub.RING);
+            final int slot = (int) (sequence % BroadcastHub.RING);
+
+            ((Buffer) into).clear();
+            into.put(this.ring[slot], 0, this.lengths[slot]);
+            ((Buffer) into).flip();
+
+            return sequence;
+        }
+
+        /**
+         * Moves every frame the upstream player has ready into the ring, ending the broadcast once its track has stopped.
+         */
+        @Override
+        public void run() {
+            boolean provided = false;
+
+            while (true) {
+                ((Buffer) this.buffer).clear();
+
+                if (!this.upstream.provide(this.frame)) {
+                    break;
+                }
+
+                ((Buffer) this.buffer).flip();
+
+                synchronized (this) {
+                    final int slot = (int) (this.produced % BroadcastHub.RING);
+
+                    if (this.ring[slot] == null) {
+                        this.ring[slot] = new byte[this.buffer.capacity()];
+                    }
+
+                    this.lengths[slot] = this.buffer.remaining();
+                    this.buffer.get(this.ring[slot], 0, this.lengths[slot]);
+                    this.produced++;
+                }
+
+                provided = true;
+            }
+
+            if (provided) {
+                synchronized (this) {
+                    this.notifyAll();
+                }
+            } else if (this.upstream.getPlayingTrack() == null) {
+                this.end();
+            }
+        }
+    }
+
+}
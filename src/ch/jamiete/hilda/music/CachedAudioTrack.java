@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import com.sedmelluq.discord.lavaplayer.container.common.OpusPacketRouter;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+
+/**
+ * A track played from Opus frames recorded by the {@link FrameCache}. Frames pass straight through to the player unless it needs to apply
+ * volume, in which case lavaplayer decodes them as it would any other Opus source. The track holds a lease on its recording, which is
+ * released once it has been played.
+ */
+class CachedAudioTrack extends BaseAudioTrack {
+    /**
+     * The sample rate of recorded frames.
+     */
+    private static final int FREQUENCY = 48000;
+    /**
+     * The number of channels in recorded frames.
+     */
+    private static final int CHANNELS = 2;
+    /**
+     * The milliseconds of audio in each recorded frame.
+     */
+    static final long FRAME_DURATION = 20L;
+
+    private final FrameCache.Lease lease;
+
+    /**
+     * @param info The information of the original track.
+     * @param lease The lease on the recorded frames, which are not modified.
+     */
+    CachedAudioTrack(final AudioTrackInfo info, final FrameCache.Lease lease) {
+        super(info);
+        this.lease = lease;
+    }
+
+    @Override
+    protected AudioTrack makeShallowClone() {
+        return new CachedAudioTrack(this.trackInfo, this.lease.copy());
+    }
+
+    @Override
+    public void process(final LocalAudioTrackExecutor executor) throws Exception {
+        final ByteBuffer frames = this.lease.getFrames().duplicate();
+        final OpusPacketRouter router = new OpusPacketRouter(executor.getProcessingContext(), CachedAudioTrack.FREQUENCY, CachedAudioTrack.CHANNELS);
+
+        try {
+            executor.executeProcessingLoop(() -> {
+                while (frames.remaining() > 2) {
+                    final int length = frames.getShort() & 0xFFFF;
+                    final ByteBuffer packet = frames.slice();
+
+                    ((Buffer) packet).limit(length);
+                    ((Buffer) frames).position(frames.position() + length);
+                    router.process(packet);
+                }
+
+                router.flush();
+            }, position -> {
+                ((Buffer) frames).rewind();
+
+                long provided = 0L;
+
+                while ((frames.remaining() > 2) && ((provided + CachedAudioTrack.FRAME_DURATION) <= position)) {
+                    final int length = frames.getShort() & 0xFFFF;
+
+                    ((Buffer) frames).position(frames.position() + length);
+                    provided += CachedAudioTrack.FRAME_DURATION;
+                }
+
+                router.seekPerformed(position, provided);
+            });
+        } finally {
+            router.close();
+            this.lease.release();
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+
+/**
+ * A bounded cache of URLs and searches that recently failed to load, keyed by normalised identifier. Each failure is remembered for the time
+ * its {@link LoadFailure} allows, so repeat requests can be answered without another remote load.
+ */
+class FailureCache {
+    private final int capacity;
+    private final LinkedHashMap<String, Failure> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hits = 0L;
+
+    /**
+     * @param capacity The maximum number of failures to remember.
+     */
+    FailureCache(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Looks up a failure.
+     * @param key The normalised identifier.
+     * @return The failure or {@code null} if none is remembered or it has expired.
+     */
+    synchronized Failure get(final String key) {
+        final Failure failure = this.entries.get(key);
+
+        if (failure == null) {
+            return null;
+        }
+
+        if ((System.nanoTime() - failure.stored) > failure.reason.getTtl()) {
+            this.entries.remove(key);
+            return null;
+        }
+
+        this.hits++;
+        return failure;
+    }
+
+    synchronized long getHits() {
+        return this.hits;
+    }
+
+    synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    /**
+     * Remembers a failure, dropping the least recently used ones to stay within capacity.
+     * @param key The normalised identifier.
+     * @param failure The failure to remember.
+     */
+    synchronized void put(final String key, final Failure failure) {
+        this.entries.put(key, failure);
+
+        final Iterator<Map.Entry<String, Failure>> iterator = this.entries.entrySet().iterator();
+
+        while (iterator.hasNext() && (this.entries.size() > this.capacity)) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * A remembered failure. Load exceptions are kept as their message and severity only.
+     */
+    static final class Failure {
+        final LoadFailure reason;
+        final String message;
+        final FriendlyException.Severity severity;
+        final long stored = System.nanoTime();
+
+        Failure(final LoadFailure reason, final String message, final FriendlyException.Severity severity) {
+            this.reason = reason;
+            this.message = message;
+            this.severity = severity;
+        }
+    }
+
+}
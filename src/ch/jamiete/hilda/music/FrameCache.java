@@ -0,0 +1,579 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * A size-bounded, least-recently-used cache on disk of the Opus frames sent for frequently played tracks, keyed by track identifier. <p>
+ * A track is recorded as it is sent the {@value #RECORD_AFTER}th time it is played, and only kept if it plays to the end unmodified. Later plays
+ * read the frames from a memory-mapped file through a {@link CachedAudioTrack} instead of the remote source. Each file is a sequence of frames,
+ * each prefixed by its length as an unsigned short. <p>
+ * Recordings being read are leased. A recording evicted while leased leaves the cache at once, but its file is only deleted once every lease
+ * on it has been released.
+ */
+class FrameCache {
+    /**
+     * The number of times a track must be played before it is recorded.
+     */
+    static final int RECORD_AFTER = 2;
+    /**
+     * The number of identifiers whose plays are counted.
+     */
+    private static final int PLAYS_TRACKED = 4096;
+    private static final String SUFFIX = ".opus";
+    private static final String TEMPORARY = ".tmp";
+    /**
+     * The size of each buffer a recorder copies frames into before handing them to the writer.
+     */
+    private static final int BATCH_BYTES = 32768;
+    /**
+     * The number of buffers each recorder has, including the one being filled.
+     */
+    private static final int BATCHES = 4;
+
+    private final File directory;
+    private final long capacity;
+    private final Executor writer;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Integer> plays = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> recording = new HashSet<>();
+    private final Set<String> retired = new HashSet<>();
+
+    private long bytes = 0L;
+    private long hits = 0L;
+    private long recorded = 0L;
+    private long evictions = 0L;
+
+    /**
+     * Opens the cache, indexing any frames already recorded in the directory and removing incomplete recordings.
+     * @param directory The directory to store recordings in.
+     * @param capacity The maximum number of bytes to store.
+     * @param writer The executor recordings are written on. It must run tasks one at a time, in order.
+     */
+    FrameCache(final File directory, final long capacity, final Executor writer) {
+        this.directory = directory;
+        this.capacity = capacity;
+        this.writer = writer;
+
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            Hilda.getLogger().warning("Couldn't create frame cache directory " + this.directory.getAbsolutePath());
+            return;
+        }
+
+        final File[] files = this.directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+
+        for (final File file : files) {
+            final String name = file.getName();
+
+            if (name.endsWith(FrameCache.TEMPORARY)) {
+                file.delete();
+            } else if (name.endsWith(FrameCache.SUFFIX)) {
+                final String key = name.substring(0, name.length() - FrameCache.SUFFIX.length());
+
+                this.entries.put(key, new Entry(key, file));
+                this.bytes += file.length();
+            }
+        }
+
+        this.evict();
+        Hilda.getLogger().info("Indexed " + this.entries.size() + " recorded tracks in the frame cache");
+    }
+
+    /**
+     * Hashes an identifier into the name used for its file.
+     * @param identifier The track identifier.
+     * @return The key.
+     */
+    private static String key(final String identifier) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(identifier.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+
+            for (final byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+
+            return sb.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Removes least recently used recordings until the cache is within capacity. Their files are deleted now if they are not leased, or
+     * otherwise once the last lease is released.
+     */
+    private void evict() {
+        final Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+
+        while (iterator.hasNext() && (this.bytes > this.capacity)) {
+            final Entry eldest = iterator.next().getValue();
+
+            iterator.remove();
+            this.bytes -= eldest.file.length();
+            this.evictions++;
+            eldest.evicted = true;
+
+            if (eldest.references == 0) {
+                this.delete(eldest);
+            } else {
+                this.retired.add(eldest.key);
+            }
+        }
+    }
+
+    /**
+     * Deletes the file of a recording that has left the cache.
+     * @param entry The recording.
+     */
+    private void delete(final Entry entry) {
+        entry.frames = null;
+        entry.file.delete();
+        this.retired.remove(entry.key);
+    }
+
+    synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    synchronized long getHits() {
+        return this.hits;
+    }
+
+    synchronized long getRecorded() {
+        return this.recorded;
+    }
+
+    synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    /**
+     * Leases a recorded track, mapping it into memory if it has not been already. The lease must be released once the frames have been read.
+     * @param identifier The identifier of the track.
+     * @return The lease, or {@code null} if the track has not been recorded.
+     */
+    synchronized Lease acquire(final String identifier) {
+        final String key = FrameCache.key(identifier);
+        final Entry entry = this.entries.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.frames == null) {
+            try (FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ)) {
+                entry.frames = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            } catch (final IOException e) {
+                Hilda.getLogger().log(Level.WARNING, "Couldn't map recorded frames for " + identifier, e);
+                this.bytes -= entry.file.length();
+                this.entries.remove(key);
+                this.delete(entry);
+                return null;
+            }
+        }
+
+        entry.references++;
+        return new Lease(entry);
+    }
+
+    /**
+     * Opens a recorded track for playback.
+     * @param identifier The identifier of the track.
+     * @param info The information of the original track.
+     * @return A track that plays the recorded frames, or {@code null} if the track has not been recorded.
+     */
+    synchronized AudioTrack open(final String identifier, final AudioTrackInfo info) {
+        final Lease lease = this.acquire(identifier);
+
+        if (lease == null) {
+            return null;
+        }
+
+        this.hits++;
+        return new CachedAudioTrack(info, lease);
+    }
+
+    /**
+     * Releases a lease on a recording, deleting its file if it has been evicted and this was the last lease.
+     * @param entry The recording.
+     */
+    private synchronized void release(final Entry entry) {
+        entry.references--;
+
+        if ((entry.references == 0) && entry.evicted) {
+            this.delete(entry);
+        }
+    }
+
+    /**
+     * Counts a play of a track and, if it has been played often enough and is not already recorded or being recorded, starts recording it.
+     * @param identifier The identifier of the track.
+     * @return The recorder or {@code null} if the track should not be recorded.
+     */
+    synchronized Recorder record(final String identifier) {
+        final String key = FrameCache.key(identifier);
+
+        if (this.entries.containsKey(key) || this.recording.contains(key) || this.retired.contains(key)) {
+            return null;
+        }
+
+        final int count = this.plays.merge(key, 1, Integer::sum);
+
+        if (this.plays.size() > FrameCache.PLAYS_TRACKED) {
+            final Iterator<String> iterator = this.plays.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+
+        if (count < FrameCache.RECORD_AFTER) {
+            return null;
+        }
+
+        this.recording.add(key);
+        return new Recorder(key, new File(this.directory, key + FrameCache.TEMPORARY));
+    }
+
+    /**
+     * A recording of the frames of a single track. Frames are copied into preallocated buffers as they are sent, and each buffer is handed to
+     * the cache's writer thread once full, so the thread sending audio neither allocates nor waits on the disk. The writer also closes, stores
+     * or deletes the file. <p>
+     * Recording starts at the first frame of the track, going by frame timecodes, so frames still sent from a previous track are skipped. A
+     * recording missing any frame cannot be completed. The recording only enters the cache if it is committed.
+     */
+    final class Recorder {
+        private final String key;
+        private final File file;
+        private final BlockingQueue<ByteBuffer> spare = new ArrayBlockingQueue<>(FrameCache.BATCHES);
+        // Guarded by this recorder, which is otherwise only locked once by commit or abort
+        private boolean closed = false;
+        private ByteBuffer batch;
+        private long accepted = 0L;
+        private long next = -1L;
+        // Only touched on the writer thread
+        private FileOutputStream out = null;
+        private long written = 0L;
+        private boolean failed = false;
+
+        private Recorder(final String key, final File file) {
+            this.key = key;
+            this.file = file;
+            this.batch = ByteBuffer.allocate(FrameCache.BATCH_BYTES);
+
+            for (int i = 1; i < FrameCache.BATCHES; i++) {
+                this.spare.add(ByteBuffer.allocate(FrameCache.BATCH_BYTES));
+            }
+        }
+
+        /**
+         * Discards the recording. Safe to call more than once, and after {@link #commit(Runnable)}, in which case it does nothing.
+         */
+        void abort() {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+
+                this.closed = true;
+            }
+
+            if (!this.submit(() -> {
+                this.close();
+                this.file.delete();
+                this.release();
+            })) {
+                this.release();
+            }
+        }
+
+        /**
+         * Writes a full buffer of frames and returns it to be filled again. Run on the writer thread.
+         * @param batch The buffer, flipped.
+         */
+        private void append(final ByteBuffer batch) {
+            if (!this.failed && batch.hasRemaining()) {
+                try {
+                    if (this.out == null) {
+                        this.out = new FileOutputStream(this.file);
+                    }
+
+                    this.out.write(batch.array(), batch.arrayOffset(), batch.limit());
+                    this.written += batch.limit();
+                } catch (final IOException e) {
+                    Hilda.getLogger().log(Level.WARNING, "Couldn't record frames", e);
+                    this.failed = true;
+                }
+            }
+
+            ((Buffer) batch).clear();
+            this.spare.offer(batch);
+        }
+
+        /**
+         * Closes the file if it was opened. Run on the writer thread.
+         */
+        private void close() {
+            if (this.out == null) {
+                return;
+            }
+
+            try {
+                this.out.close();
+            } catch (final IOException e) {
+                this.failed = true;
+            }
+        }
+
+        /**
+         * Adds the recording to the cache, evicting older recordings to make room. Safe to call more than once, and after {@link #abort()}, in
+         * which case it does nothing.
+         * @param then A task to run on the writer thread once the recording is in the cache.
+         */
+        void commit(final Runnable then) {
+            final ByteBuffer last;
+
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+
+                this.closed = true;
+                last = this.batch;
+                ((Buffer) last).flip();
+            }
+
+            if (!this.submit(() -> {
+                this.append(last);
+                this.store(then);
+            })) {
+                this.release();
+            }
+        }
+
+        /**
+         * Hands the buffer being filled to the writer and starts filling a spare one. Called while locked.
+         * @return Whether the buffer was handed off; it is not if the writer has fallen so far behind that no buffer is spare.
+         */
+        private boolean handOff() {
+            final ByteBuffer empty = this.spare.poll();
+
+            if (empty == null) {
+                return false;
+            }
+
+            final ByteBuffer full = this.batch;
+
+            this.batch = empty;
+            ((Buffer) full).flip();
+            return this.submit(() -> this.append(full));
+        }
+
+        /**
+         * Releases the key so that the track can be recorded again.
+         */
+        private void release() {
+            synchronized (FrameCache.this) {
+                FrameCache.this.recording.remove(this.key);
+            }
+        }
+
+        /**
+         * Closes the file and moves it into the cache. Run on the writer thread.
+         * @param then A task to run once the recording is in the cache.
+         */
+        private void store(final Runnable then) {
+            this.close();
+
+            if (this.failed || (this.written == 0L)) {
+                this.file.delete();
+                this.release();
+                return;
+            }
+
+            final File target = new File(FrameCache.this.directory, this.key + FrameCache.SUFFIX);
+
+            try {
+                Files.move(this.file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final IOException e) {
+                Hilda.getLogger().log(Level.WARNING, "Couldn't store recorded frames", e);
+                this.file.delete();
+                this.release();
+                return;
+            }
+
+            synchronized (FrameCache.this) {
+                FrameCache.this.recording.remove(this.key);
+                FrameCache.this.entries.put(this.key, new Entry(this.key, target));
+                FrameCache.this.plays.remove(this.key);
+                FrameCache.this.bytes += this.written;
+                FrameCache.this.recorded++;
+                FrameCache.this.evict();
+            }
+
+            then.run();
+        }
+
+        /**
+         * Hands a task to the writer thread.
+         * @param task The task.
+         * @return Whether the task was accepted; it is not once the cache has been shut down.
+         */
+        private boolean submit(final Runnable task) {
+            try {
+                FrameCache.this.writer.execute(task);
+                return true;
+            } catch (final RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Copies a frame to be written. The buffer's position and limit are not changed. Frames sent before the first frame of the track are
+         * skipped.
+         * @param frame A heap buffer holding the frame between its position and limit.
+         * @param timecode The position in the track of the frame in milliseconds.
+         * @return Whether the recording can continue. If not it should be aborted.
+         */
+        synchronized boolean write(final ByteBuffer frame, final long timecode) {
+            if (this.closed) {
+                return false;
+            }
+
+            if (this.next < 0L) {
+                if (timecode >= CachedAudioTrack.FRAME_DURATION) {
+                    return true;
+                }
+            } else if (Math.abs(timecode - this.next) >= (CachedAudioTrack.FRAME_DURATION / 2L)) {
+                return false;
+            }
+
+            final int length = frame.remaining();
+
+            if ((this.accepted + length + 2L) > (FrameCache.this.capacity / 8L)) {
+                return false;
+            }
+
+            if ((this.batch.remaining() < (length + 2)) && !this.handOff()) {
+                return false;
+            }
+
+            this.batch.putShort((short) length);
+            this.batch.put(frame.array(), frame.arrayOffset() + frame.position(), length);
+            this.accepted += length + 2L;
+            this.next = timecode + CachedAudioTrack.FRAME_DURATION;
+            return true;
+        }
+    }
+
+    /**
+     * A hold on a recorded track that keeps its file from being deleted while its frames are read. Releasing it more than once has no effect.
+     */
+    final class Lease {
+        private final Entry entry;
+        private final ByteBuffer frames;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(final Entry entry) {
+            this.entry = entry;
+            this.frames = entry.frames;
+        }
+
+        /**
+         * Takes another lease on the same recording.
+         * @return The new lease.
+         */
+        Lease copy() {
+            synchronized (FrameCache.this) {
+                this.entry.references++;
+            }
+
+            return new Lease(this.entry);
+        }
+
+        /**
+         * Gets the recorded frames.
+         * @return A direct buffer of the frames, which must not be modified.
+         */
+        ByteBuffer getFrames() {
+            return this.frames;
+        }
+
+        /**
+         * Releases the lease, deleting the recording if it has been evicted and no other lease is held.
+         */
+        void release() {
+            if (this.released.compareAndSet(false, true)) {
+                FrameCache.this.release(this.entry);
+            }
+        }
+    }
+
+    /**
+     * A recorded track on disk, mapped into memory the first time it is played.
+     */
+    private static final class Entry {
+        final String key;
+        final File file;
+        MappedByteBuffer frames = null;
+        int references = 0;
+        boolean evicted = false;
+
+        Entry(final String key, final File file) {
+            this.key = key;
+            this.file = file;
+        }
+    }
+
+}
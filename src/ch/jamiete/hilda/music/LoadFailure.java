@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.util.concurrent.TimeUnit;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+
+/**
+ * The reasons a URL or search can fail to load, each with the time a failure is remembered for.
+ */
+public enum LoadFailure {
+    GEO_BLOCKED("The uploader has not made this video available", "That track is geo-blocked and cannot be played.", 30L),
+    COPYRIGHT("This video contains content from", "That track has been restricted by the copyright holder and cannot be played.", 30L),
+    UNAVAILABLE("This video is not available", "That track is not available to me and cannot be played.", 10L),
+    NO_MATCHES(null, "I couldn't find anything matching that query.", 5L),
+    OTHER(null, null, 1L);
+
+    private final String prefix;
+    private final String reply;
+    private final long ttl;
+
+    LoadFailure(final String prefix, final String reply, final long minutes) {
+        this.prefix = prefix;
+        this.reply = reply;
+        this.ttl = TimeUnit.MINUTES.toNanos(minutes);
+    }
+
+    /**
+     * Classifies a load failure by its message.
+     * @param e The failure.
+     * @return The reason for the failure; never {@link #NO_MATCHES}.
+     */
+    public static LoadFailure classify(final FriendlyException e) {
+        if (e.getMessage() != null) {
+            for (final LoadFailure failure : LoadFailure.values()) {
+                if ((failure.prefix != null) && e.getMessage().startsWith(failure.prefix)) {
+                    return failure;
+                }
+            }
+        }
+
+        return LoadFailure.OTHER;
+    }
+
+    /**
+     * Gets the message to reply with when a load fails for this reason.
+     * @return The reply or {@code null} if the failure's own message should be used.
+     */
+    public String getReply() {
+        return this.reply;
+    }
+
+    /**
+     * Gets how long a failure for this reason is remembered.
+     * @return The time in nanoseconds.
+     */
+    long getTtl() {
+        return this.ttl;
+    }
+}
@@ -15,9 +15,12 @@
  */
 package ch.jamiete.hilda.music;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
 import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
@@ -28,6 +31,11 @@ import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
 
 public class LoadResults implements AudioLoadResultHandler {
+    /**
+     * The number of playlist entries queued in each turn of the server's mailbox while a playlist is ingested.
+     */
+    private static final int INGEST_BATCH = 250;
+
     private final MusicServer server;
     private final Message message;
     private final Member member;
@@ -46,16 +54,17 @@ public class LoadResults implements AudioLoadResultHandler {
 
     @Override
     public final void loadFailed(final FriendlyException e) {
-        if (e.getMessage().startsWith("The uploader has not made this video available")) {
-            this.reply("That track is geo-blocked and cannot be played.");
-        } else if (e.getMessage().startsWith("This video contains content from")) {
-            this.reply("That track has been restricted by the copyright holder and cannot be played.");
-        } else if (e.getMessage().startsWith("This video is not available")) {
-            this.reply("That track is not available to me and cannot be played.");
-        } else {
+        this.server.execute(() -> this.failed(e));
+    }
+
+    private void failed(final FriendlyException e) {
+        final LoadFailure failure = LoadFailure.classify(e);
+
+        if (failure.getReply() == null) {
             Hilda.getLogger().log(Level.WARNING, "Couldn't load track in " + MusicManager.getFriendlyGuild(this.message.getGuild()), e);
             this.reply("I couldn't load that track: " + e.getMessage() + '.');
-            Hilda.getLogger().log(Level.WARNING, "Couldn't load track in " + MusicManager.getFriendlyGuild(this.message.getGuild()), e);
+        } else {
+            this.reply(failure.getReply());
         }
 
         this.server.prompt();
@@ -63,13 +72,58 @@ public class LoadResults implements AudioLoadResultHandler {
 
     @Override
     public final void noMatches() {
+        this.server.execute(this::unmatched);
+    }
+
+    private void unmatched() {
         Hilda.getLogger().info("Failed to find anything for query " + this.message.getContentDisplay());
-        this.reply("I couldn't find anything matching that query.");
+        this.reply(LoadFailure.NO_MATCHES.getReply());
         this.server.prompt();
     }
 
+    /**
+     * Builds and queues the next chunk of a playlist being ingested, then hands the rest back to the server's mailbox so other work for the guild
+     * can run in between. Replies once the whole playlist has been queued.
+     * @param tracks The tracks of the playlist.
+     * @param from The position of the first track in the chunk.
+     * @param accepted The items queued so far.
+     * @param previous The remaining time of the queue before the playlist was queued.
+     * @param head The first item of the playlist, queued before the rest, or {@code null} if it was not queued.
+     */
+    private void ingest(final List<AudioTrack> tracks, final int from, final List<QueueItem> accepted, final long previous, final QueueItem head) {
+        if ((from >= tracks.size()) || this.server.isStopping()) {
+            this.replyPlaylist(tracks.size(), accepted, previous, head);
+            return;
+        }
+
+        final int to = Math.min(from + LoadResults.INGEST_BATCH, tracks.size());
+        final List<QueueItem> chunk = new ArrayList<>(to - from);
+        final AudioPlayerManager manager = this.server.getManager().getAudioPlayerManager();
+
+        for (final AudioTrack track : tracks.subList(from, to)) {
+            if (track.getDuration() < MusicManager.DJ_TIME_LIMIT) {
+                // Resolved as they near the head of the queue
+                chunk.add(QueueItem.placeholder(manager, track, this.member.getUser().getIdLong()));
+            }
+        }
+
+        if (!chunk.isEmpty()) {
+            accepted.addAll(this.server.queueAll(chunk));
+        }
+
+        this.server.execute(() -> this.ingest(tracks, to, accepted, previous, head));
+    }
+
     @Override
     public final void playlistLoaded(final AudioPlaylist playlist) {
+        this.server.execute(() -> this.loaded(playlist));
+    }
+
+    private void loaded(final AudioPlaylist playlist) {
+        if (this.server.isStopping()) {
+            return;
+        }
+
         Hilda.getLogger().fine("Loaded a playlist");
 
         if (this.search) {
@@ -80,62 +134,85 @@ public class LoadResults implements AudioLoadResultHandler {
 
         if (MusicManager.isDJ(this.message)) {
             Hilda.getLogger().info("Queuing songs for DJ/admin...");
-            long duration = 0L;
             final long previous = this.server.getDuration();
-            int queued = 0;
-
-            for (final AudioTrack track : playlist.getTracks()) {
-                if (!this.server.isQueued(track) && !this.server.isQueueFull() && ((MusicManager.isDJ(this.message) && (track.getDuration() < MusicManager.DJ_TIME_LIMIT)) || (!MusicManager.isDJ(this.message) && (track.getDuration() < MusicManager.TIME_LIMIT)))) {
-                    this.server.queue(new QueueItem(track, this.member.getUser().getId()));
-                    queued++;
-                    duration += track.getDuration();
-                }
+            final List<AudioTrack> tracks = playlist.getTracks();
+            int from = 0;
+
+            while ((from < tracks.size()) && (tracks.get(from).getDuration() >= MusicManager.DJ_TIME_LIMIT)) {
+                from++;
             }
 
+            // Only the first track is queued straight away, so it can start playing; the rest are built in the background
+            final List<QueueItem> first = (from < tracks.size()) ? this.server.queueAll(Collections.singletonList(QueueItem.placeholder(this.server.getManager().getAudioPlayerManager(), tracks.get(from), this.member.getUser().getIdLong()))) : Collections.emptyList();
+            final int rest = from + 1;
+
             if (this.message.getGuild().getSelfMember().hasPermission(this.message.getTextChannel(), Permission.MESSAGE_MANAGE)) {
                 this.message.delete().reason("I automatically delete some command invocations. If you don't want this to happen, remove my manage messages permission in the channel.").queue();
             }
 
-            final StringBuilder sb = new StringBuilder();
-            sb.append("Queued ");
+            this.server.execute(() -> this.ingest(tracks, rest, new ArrayList<>(first), previous, first.isEmpty() ? null : first.get(0)));
+        } else {
+            Hilda.getLogger().fine("Trying to queue first from playlist for non-DJ...");
+            this.tryLoadTrack(playlist.getTracks().get(0));
+        }
+    }
 
-            if (queued < playlist.getTracks().size()) {
-                sb.append(queued).append('/').append(playlist.getTracks().size());
-            } else {
-                sb.append(playlist.getTracks().size());
-            }
+    /**
+     * Replies with the outcome of queueing a playlist.
+     * @param total The number of tracks in the playlist.
+     * @param accepted The items that were queued.
+     * @param previous The remaining time of the queue before the playlist was queued.
+     * @param head The first item of the playlist, queued before the rest, or {@code null} if it was not queued.
+     */
+    private void replyPlaylist(final int total, final List<QueueItem> accepted, final long previous, final QueueItem head) {
+        final int queued = accepted.size();
+        long duration = 0L;
 
-            sb.append(" tracks for ").append(this.member.getEffectiveName());
+        for (final QueueItem item : accepted) {
+            duration += item.getDuration();
+        }
 
-            if ((this.server.getPlaying() == null) || (this.server.getPlayer().getPlayingTrack() == null)) {
-                // Something's gone wrong
-                sb.append("; up soon!");
-            } else if (this.server.getPlaying().getTrack() == playlist.getTracks().get(0)) {
-                sb.append("; up now! Playing for ").append(Util.getFriendlyTime(duration)).append('.');
-            } else {
-                sb.append("; playing for ").append(Util.getFriendlyTime(duration));
-                sb.append(" in ").append(Util.getFriendlyTime(previous)).append('!');
-            }
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Queued ");
 
-            this.reply(sb.toString());
-            Hilda.getLogger().info("Queued " + queued + '/' + playlist.getTracks().size());
+        if (queued < total) {
+            sb.append(queued).append('/').append(total);
         } else {
-            Hilda.getLogger().fine("Trying to queue first from playlist for non-DJ...");
-            this.tryLoadTrack(playlist.getTracks().get(0));
+            sb.append(total);
+        }
+
+        sb.append(" tracks for ").append(this.member.getEffectiveName());
+
+        if ((this.server.getPlaying() == null) || (this.server.getPlayer().getPlayingTrack() == null)) {
+            // Something's gone wrong
+            sb.append("; up soon!");
+        } else if ((head != null) && (this.server.getPlaying() == head)) {
+            sb.append("; up now! Playing for ").append(Util.getFriendlyTime(duration)).append('.');
+        } else {
+            sb.append("; playing for ").append(Util.getFriendlyTime(duration));
+            sb.append(" in ").append(Util.getFriendlyTime(previous)).append('!');
         }
+
+        this.reply(sb.toString());
+        Hilda.getLogger().info("Queued " + queued + '/' + total);
     }
 
     private void reply(final String message) {
-        this.message.getChannel().sendMessage(message).queue();
+        this.server.getManager().getOutbound().send(this.message.getChannel(), message);
     }
 
     @Override
     public final void trackLoaded(final AudioTrack track) {
         Hilda.getLogger().fine("Loaded a track");
-        this.tryLoadTrack(track);
+        this.server.execute(() -> this.tryLoadTrack(track));
     }
 
     private void tryLoadTrack(final AudioTrack track) {
+        if (this.server.isStopping()) {
+            Hilda.getLogger().fine("Dropped a loaded track because the server is stopping");
+            return;
+        }
+
         if (this.server.isQueued(track)) {
             Hilda.getLogger().fine("Song already queued.");
             this.reply("That song is already queued.");
@@ -150,8 +227,10 @@ public class LoadResults implements AudioLoadResultHandler {
             return;
         }
 
-        if ((MusicManager.isDJ(this.message) && (track.getDuration() > MusicManager.DJ_TIME_LIMIT)) || (!MusicManager.isDJ(this.message) && (track.getDuration() > MusicManager.TIME_LIMIT))) {
-            Hilda.getLogger().fine("Song too long; " + track.getDuration() + ">" + MusicManager.TIME_LIMIT + ".");
+        final long limit = MusicManager.isDJ(this.message) ? MusicManager.DJ_TIME_LIMIT : MusicManager.TIME_LIMIT;
+
+        if (track.getDuration() > limit) {
+            Hilda.getLogger().fine("Song too long; " + track.getDuration() + ">" + limit + ".");
             this.reply("The song is too long to be queued.");
             this.server.prompt();
             return;
@@ -173,13 +252,13 @@ public class LoadResults implements AudioLoadResultHandler {
             sb.append("; playing in ").append(Util.getFriendlyTime(this.server.getDuration())).append('!');
         }
 
-        final List<QueueItem> queue = this.server.getQueue();
-        if (!queue.isEmpty()) {
-            sb.append(" (Queue code ").append(queue.size() + 1).append(')');
+        final int size = this.server.getQueueSize();
+        if (size != 0) {
+            sb.append(" (Queue code ").append(size + 1).append(')');
         }
 
         this.reply(Util.sanitise(sb.toString()));
-        this.server.queue(new QueueItem(track, this.member.getUser().getId()));
+        this.server.queue(QueueItem.placeholder(this.server.getManager().getAudioPlayerManager(), track, this.member.getUser().getIdLong()));
         Hilda.getLogger().fine("Queued a song");
     }
 
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import com.sedmelluq.discord.lavaplayer.natives.opus.OpusDecoder;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Measures and remembers the loudness of recorded tracks, so that loud tracks can be turned down without every other track leaving the Opus
+ * passthrough path. <p>
+ * Loudness is measured in the background from the frames the {@link FrameCache} recorded, as the mean power of all non-silent frames in dBFS.
+ * This approximates gated integrated loudness closely enough to pick out tracks that are mastered much louder than the rest.
+ */
+class LoudnessCache {
+    /**
+     * The loudness tracks are turned down to, in dBFS.
+     */
+    static final double TARGET = -16.0;
+    /**
+     * How far above the target a track must be before it is turned down, in dB.
+     */
+    private static final double TOLERANCE = 2.0;
+    /**
+     * Frames quieter than this, in dBFS, are not counted.
+     */
+    private static final double GATE = -70.0;
+    /**
+     * The lowest volume normalisation turns a track down to.
+     */
+    private static final int MINIMUM_GAIN = 10;
+    /**
+     * The number of measurements remembered.
+     */
+    private static final int CAPACITY = 16384;
+
+    private final Executor executor;
+    private final LinkedHashMap<String, Double> levels = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> pending = new HashSet<>();
+
+    private long analysed = 0L;
+
+    /**
+     * @param executor The executor to analyse tracks on. Decoding a whole track is CPU heavy, so it should not be shared with work that must run on
+     *            time.
+     */
+    LoudnessCache(final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Measures the loudness of a sequence of recorded frames.
+     * @param frames A direct buffer of frames, in the format written by the {@link FrameCache}.
+     * @return The loudness in dBFS, or {@code null} if the frames are silent.
+     */
+    private static Double measure(final ByteBuffer frames) {
+        final OpusDecoder decoder = new OpusDecoder(48000, 2);
+        final ShortBuffer samples = ByteBuffer.allocateDirect(960 * 2 * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+
+        double power = 0.0;
+        long counted = 0L;
+
+        try {
+            while (frames.remaining() > 2) {
+                final int length = frames.getShort() & 0xFFFF;
+
+                final ByteBuffer packet = frames.slice();
+
+                ((Buffer) packet).limit(length);
+                ((Buffer) frames).position(frames.position() + length);
+
+                ((Buffer) samples).clear();
+                final int decoded = decoder.decode(packet, samples) * 2;
+
+                double sum = 0.0;
+
+                for (int i = 0; i < decoded; i++) {
+                    final double sample = samples.get(i) / 32768.0;
+                    sum += sample * sample;
+                }
+
+                final double mean = (decoded == 0) ? 0.0 : (sum / decoded);
+
+                if ((mean > 0.0) && ((10.0 * Math.log10(mean)) > LoudnessCache.GATE)) {
+                    power += mean;
+                    counted++;
+                }
+            }
+        } finally {
+            decoder.close();
+        }
+
+        return (counted == 0L) ? null : (10.0 * Math.log10(power / counted));
+    }
+
+    synchronized long getAnalysed() {
+        return this.analysed;
+    }
+
+    /**
+     * Gets the volume a track should be played at for it to sound as loud as the target. Tracks that have not been measured or are not loud are
+     * left at full volume.
+     * @param identifier The identifier of the track.
+     * @return The volume as a percentage.
+     */
+    synchronized int getGain(final String identifier) {
+        final Double level = this.levels.get(identifier);
+
+        if ((level == null) || (level <= (LoudnessCache.TARGET + LoudnessCache.TOLERANCE))) {
+            return 100;
+        }
+
+        return Math.max(LoudnessCache.MINIMUM_GAIN, (int) Math.round(100.0 * Math.pow(10.0, (LoudnessCache.TARGET - level) / 20.0)));
+    }
+
+    /**
+     * Measures a recorded track in the background, unless it has been measured already or is being measured.
+     * @param identifier The identifier of the track.
+     * @param frames The recorded frames, which are not modified.
+     * @param release A task to run once the frames are no longer needed, whether or not they were measured.
+     */
+    void request(final String identifier, final ByteBuffer frames, final Runnable release) {
+        synchronized (this) {
+            if (this.levels.containsKey(identifier) || !this.pending.add(identifier)) {
+                release.run();
+                return;
+            }
+        }
+
+        try {
+            this.executor.execute(() -> {
+                try {
+                    final Double level = LoudnessCache.measure(frames.duplicate());
+
+                    Hilda.getLogger().fine("Measured " + identifier + " at " + level + " dBFS");
+
+                    synchronized (this) {
+                        this.levels.put(identifier, (level == null) ? Double.NEGATIVE_INFINITY : level);
+                        this.analysed++;
+
+                        if (this.levels.size() > LoudnessCache.CAPACITY) {
+                            final Iterator<String> iterator = this.levels.keySet().iterator();
+                            iterator.next();
+                            iterator.remove();
+                        }
+                    }
+                } catch (final Throwable t) {
+                    Hilda.getLogger().log(Level.WARNING, "Couldn't measure the loudness of " + identifier, t);
+                } finally {
+                    synchronized (this) {
+                        this.pending.remove(identifier);
+                    }
+
+                    release.run();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // The analysis thread has been shut down with the plugin
+            synchronized (this) {
+                this.pending.remove(identifier);
+            }
+
+            release.run();
+        }
+    }
+
+}
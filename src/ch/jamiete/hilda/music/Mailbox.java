@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Runs a {@link MusicServer}'s tasks one at a time, in the order they were submitted, on a pool shared with every other server. Everything that
+ * changes a server's state goes through its mailbox, so that state needs no locks. <p>
+ * A mailbox runs at most {@value #BATCH} tasks before giving its thread back to the pool, so one busy guild cannot starve the others.
+ */
+final class Mailbox implements Executor {
+    /**
+     * The most tasks run in one turn on the pool.
+     */
+    private static final int BATCH = 64;
+
+    private final Executor pool;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * @param pool The shared pool to run on.
+     */
+    Mailbox(final Executor pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Runs tasks until the mailbox is empty or the batch is used up, then reschedules itself if more tasks have arrived.
+     */
+    private void drain() {
+        try {
+            Runnable task;
+
+            for (int i = 0; (i < Mailbox.BATCH) && ((task = this.tasks.poll()) != null); i++) {
+                try {
+                    task.run();
+                } catch (final Throwable t) {
+                    Hilda.getLogger().log(Level.WARNING, "Music task failed", t);
+                }
+            }
+        } finally {
+            this.scheduled.set(false);
+            this.schedule();
+        }
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        this.tasks.add(task);
+        this.schedule();
+    }
+
+    /**
+     * Hands the mailbox to the pool if it has tasks and is not already running or waiting to run.
+     */
+    private void schedule() {
+        if (!this.tasks.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+            try {
+                this.pool.execute(this::drain);
+            } catch (final RejectedExecutionException e) {
+                // The pool has been shut down with the plugin, so nothing more will run
+                this.tasks.clear();
+                this.scheduled.set(false);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import ch.jamiete.hilda.Hilda;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageChannel;
+
+/**
+ * A per-channel outbound buffer for music notifications. Lines sent to a channel within a short window are merged into a single message, and a
+ * channel never has more than one message in flight, so lines that arrive while Discord is rate limiting the channel are merged into the next
+ * message instead of queueing behind it. <p>
+ * Announcements of the playing track supersede one another: a new announcement drops any earlier one that has not been sent yet.
+ */
+class MessageCoalescer {
+    /**
+     * The milliseconds lines are collected for before they are sent.
+     */
+    private static final long WINDOW = 500L;
+
+    private final TimerWheel timers;
+    private final ConcurrentMap<Long, Outbox> outboxes = new ConcurrentHashMap<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+
+    /**
+     * @param timers The wheel to schedule flushes on.
+     */
+    MessageCoalescer(final TimerWheel timers) {
+        this.timers = timers;
+    }
+
+    /**
+     * Sends a line that is superseded by the next announcement to the same channel.
+     * @param channel The channel to send to.
+     * @param line The line to send.
+     */
+    void announce(final MessageChannel channel, final String line) {
+        this.add(channel, line, true);
+    }
+
+    /**
+     * Sends a line.
+     * @param channel The channel to send to.
+     * @param line The line to send.
+     */
+    void send(final MessageChannel channel, final String line) {
+        this.add(channel, line, false);
+    }
+
+    private void add(final MessageChannel channel, final String text, final boolean announcement) {
+        // A single line must always fit in a message
+        final String line = (text.length() > Message.MAX_CONTENT_LENGTH) ? text.substring(0, Message.MAX_CONTENT_LENGTH - 1) + '…' : text;
+        final Outbox outbox = this.outboxes.computeIfAbsent(channel.getIdLong(), id -> new Outbox(channel));
+
+        synchronized (outbox) {
+            if (announcement) {
+                if (outbox.announcement != -1) {
+                    outbox.lines.remove(outbox.announcement);
+                    this.depth.decrementAndGet();
+                    this.superseded.incrementAndGet();
+                }
+
+                outbox.announcement = outbox.lines.size();
+            }
+
+            outbox.lines.add(line);
+            this.depth.incrementAndGet();
+            this.lines.incrementAndGet();
+
+            if (!outbox.scheduled && !outbox.sending) {
+                outbox.scheduled = true;
+                this.timers.schedule(() -> this.flush(outbox), MessageCoalescer.WINDOW, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Sends as many pending lines as fit in one message.
+     * @param outbox The channel's outbox.
+     */
+    private void flush(final Outbox outbox) {
+        final StringBuilder sb = new StringBuilder();
+
+        synchronized (outbox) {
+            outbox.scheduled = false;
+
+            int taken = 0;
+
+            for (final String line : outbox.lines) {
+                if ((taken > 0) && ((sb.length() + 1 + line.length()) > Message.MAX_CONTENT_LENGTH)) {
+                    break;
+                }
+
+                if (taken > 0) {
+                    sb.append('\n');
+                }
+
+                sb.append(line);
+                taken++;
+            }
+
+            if (taken == 0) {
+                return;
+            }
+
+            outbox.lines.subList(0, taken).clear();
+            outbox.announcement = (outbox.announcement < taken) ? -1 : (outbox.announcement - taken);
+            outbox.sending = true;
+            this.depth.addAndGet(-taken);
+        }
+
+        this.messages.incrementAndGet();
+
+        try {
+            outbox.channel.sendMessage(sb.toString()).queue(message -> this.sent(outbox), failure -> {
+                Hilda.getLogger().log(Level.WARNING, "Couldn't send music notification to " + outbox.channel.getName(), failure);
+                this.sent(outbox);
+            });
+        } catch (final RuntimeException e) {
+            // JDA rejects some messages before queueing them, for example if the bot can't write in the channel
+            Hilda.getLogger().log(Level.WARNING, "Couldn't send music notification to " + outbox.channel.getName(), e);
+            this.sent(outbox);
+        }
+    }
+
+    /**
+     * Gets the number of lines waiting to be sent.
+     * @return The number of lines.
+     */
+    int getDepth() {
+        return this.depth.get();
+    }
+
+    /**
+     * Gets the average number of lines accepted for each message sent, including announcements that were superseded.
+     * @return The ratio, or 1 if nothing has been sent.
+     */
+    double getMergeRatio() {
+        final long messages = this.messages.get();
+        return (messages == 0L) ? 1.0D : ((double) (this.lines.get() - this.depth.get()) / messages);
+    }
+
+    /**
+     * Gets the number of announcements dropped because a newer one replaced them before they were sent.
+     * @return The number of announcements.
+     */
+    long getSuperseded() {
+        return this.superseded.get();
+    }
+
+    /**
+     * Called once a channel's message has been sent or has failed. Sends anything that arrived meanwhile after another window, or forgets the
+     * channel if nothing did.
+     * @param outbox The channel's outbox.
+     */
+    private void sent(final Outbox outbox) {
+        synchronized (outbox) {
+            outbox.sending = false;
+
+            if (outbox.lines.isEmpty()) {
+                this.outboxes.remove(outbox.channel.getIdLong(), outbox);
+            } else {
+                outbox.scheduled = true;
+                this.timers.schedule(() -> this.flush(outbox), MessageCoalescer.WINDOW, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * The lines waiting to be sent to a channel.
+     */
+    private static final class Outbox {
+        final MessageChannel channel;
+        final List<String> lines = new ArrayList<>();
+        int announcement = -1;
+        boolean scheduled = false;
+        boolean sending = false;
+
+        Outbox(final MessageChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+}
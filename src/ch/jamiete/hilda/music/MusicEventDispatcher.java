@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import ch.jamiete.hilda.Hilda;
+import ch.jamiete.hilda.events.EventHandler;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.events.Event;
+import net.dv8tion.jda.api.events.ReconnectedEvent;
+import net.dv8tion.jda.api.events.ResumedEvent;
+import net.dv8tion.jda.api.events.channel.text.GenericTextChannelEvent;
+import net.dv8tion.jda.api.events.channel.text.TextChannelCreateEvent;
+import net.dv8tion.jda.api.events.channel.text.TextChannelDeleteEvent;
+import net.dv8tion.jda.api.events.channel.text.update.TextChannelUpdateNameEvent;
+import net.dv8tion.jda.api.events.channel.text.update.TextChannelUpdatePermissionsEvent;
+import net.dv8tion.jda.api.events.guild.member.GenericGuildMemberEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.dv8tion.jda.api.events.guild.voice.GenericGuildVoiceEvent;
+import net.dv8tion.jda.api.events.guild.voice.GuildVoiceUpdateEvent;
+import net.dv8tion.jda.api.events.role.GenericRoleEvent;
+import net.dv8tion.jda.api.events.role.RoleDeleteEvent;
+import net.dv8tion.jda.api.events.role.update.RoleUpdatePermissionsEvent;
+
+/**
+ * The music plugin's single listener for guild events. It routes them as follows:
+ * <ul>
+ * <li>Voice events go to the mailbox of the {@link MusicServer} of the guild they happened in, if there is one. If the bot connects in a guild
+ * without a server, it disconnects.</li>
+ * <li>Text channel and role changes that may affect where a server sends its messages make that server choose its output channel again.</li>
+ * <li>When the connection to Discord is restored, any voice connection without a server is closed.</li>
+ * </ul>
+ */
+public class MusicEventDispatcher {
+    private final MusicManager manager;
+
+    MusicEventDispatcher(final MusicManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Makes the server of a guild, if there is one, choose its output channel again.
+     * @param guild The guild.
+     */
+    private void invalidateOutput(final Guild guild) {
+        final MusicServer server = this.manager.getServer(guild);
+
+        if (server != null) {
+            server.invalidateOutput();
+        }
+    }
+
+    @EventHandler
+    public void onEvent(final Event e) {
+        // Connections may have been restored for guilds no server is tracking, without a join event
+        if ((e instanceof ReconnectedEvent) || (e instanceof ResumedEvent)) {
+            this.manager.getHilda().getExecutor().execute(this.manager::disconnectUntracked);
+            return;
+        }
+
+        if ((e instanceof TextChannelCreateEvent) || (e instanceof TextChannelDeleteEvent) || (e instanceof TextChannelUpdateNameEvent) || (e instanceof TextChannelUpdatePermissionsEvent)) {
+            this.invalidateOutput(((GenericTextChannelEvent) e).getGuild());
+            return;
+        }
+
+        if ((e instanceof RoleDeleteEvent) || (e instanceof RoleUpdatePermissionsEvent)) {
+            this.invalidateOutput(((GenericRoleEvent) e).getGuild());
+            return;
+        }
+
+        if ((e instanceof GuildMemberRoleAddEvent) || (e instanceof GuildMemberRoleRemoveEvent)) {
+            final GenericGuildMemberEvent event = (GenericGuildMemberEvent) e;
+
+            if (event.getMember() == event.getGuild().getSelfMember()) {
+                this.invalidateOutput(event.getGuild());
+            }
+
+            return;
+        }
+
+        if (!(e instanceof GenericGuildVoiceEvent)) {
+            return;
+        }
+
+        final GenericGuildVoiceEvent event = (GenericGuildVoiceEvent) e;
+        final MusicServer server = this.manager.getServer(event.getGuild());
+
+        if (server != null) {
+            server.execute(() -> server.onVoiceEvent(event));
+            return;
+        }
+
+        // The bot has connected somewhere no server is tracking
+        if ((event instanceof GuildVoiceUpdateEvent) && (((GuildVoiceUpdateEvent) event).getChannelJoined() != null) && (event.getMember() == event.getGuild().getSelfMember())) {
+            Hilda.getLogger().info("Disconnecting from voice chat in untracked server " + event.getGuild().getName());
+            this.manager.getHilda().getExecutor().execute(() -> event.getGuild().getAudioManager().closeAudioConnection());
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * An immutable snapshot of a guild's music settings. Changing a setting creates a new snapshot; see {@link MusicManager#updateSettings}.
+ */
+public final class MusicGuildSettings {
+    /**
+     * The volume used if none is configured.
+     */
+    public static final int DEFAULT_VOLUME = 100;
+
+    private final String output;
+    private final String lock;
+    private final int limit;
+    private final int prefetch;
+    private final Boolean normalise;
+    private final int volume;
+
+    private MusicGuildSettings(final String output, final String lock, final int limit, final int prefetch, final Boolean normalise, final int volume) {
+        this.output = output;
+        this.lock = lock;
+        this.limit = limit;
+        this.prefetch = prefetch;
+        this.normalise = normalise;
+        this.volume = volume;
+    }
+
+    /**
+     * Reads the settings from a guild's configuration.
+     * @param json The configuration.
+     * @return The settings.
+     */
+    static MusicGuildSettings read(final JsonObject json) {
+        final JsonElement output = json.get("output");
+        final JsonElement lock = json.get("lock");
+        final JsonElement limit = json.get("limit");
+        final JsonElement prefetch = json.get("prefetch");
+        final JsonElement normalise = json.get("normalise");
+        final JsonElement volume = json.get("volume");
+
+        return new MusicGuildSettings((output == null) ? null : output.getAsString(), (lock == null) ? null : lock.getAsString(), (limit == null) ? -1 : limit.getAsInt(), (prefetch == null) ? -1 : prefetch.getAsInt(), (normalise == null) ? null : normalise.getAsBoolean(), (volume == null) ? -1 : volume.getAsInt());
+    }
+
+    /**
+     * Writes the settings into a guild's configuration, removing settings that are not configured.
+     * @param json The configuration.
+     */
+    void write(final JsonObject json) {
+        json.remove("output");
+        json.remove("lock");
+        json.remove("limit");
+        json.remove("prefetch");
+        json.remove("normalise");
+        json.remove("volume");
+
+        if (this.output != null) {
+            json.addProperty("output", this.output);
+        }
+
+        if (this.lock != null) {
+            json.addProperty("lock", this.lock);
+        }
+
+        if (this.limit != -1) {
+            json.addProperty("limit", this.limit);
+        }
+
+        if (this.prefetch != -1) {
+            json.addProperty("prefetch", this.prefetch);
+        }
+
+        if (this.normalise != null) {
+            json.addProperty("normalise", this.normalise);
+        }
+
+        if (this.volume != -1) {
+            json.addProperty("volume", this.volume);
+        }
+    }
+
+    /**
+     * Gets the ID of the text channel messages are forced into.
+     * @return The channel ID or {@code null} if none is configured.
+     */
+    public String getOutput() {
+        return this.output;
+    }
+
+    /**
+     * Gets the ID of the voice channel music is locked to.
+     * @return The channel ID or {@code null} if none is configured.
+     */
+    public String getLock() {
+        return this.lock;
+    }
+
+    /**
+     * Gets the maximum number of items the queue may hold.
+     * @return The configured limit, or {@link MusicManager#QUEUE_LIMIT} if none is configured.
+     */
+    public int getQueueLimit() {
+        return (this.limit == -1) ? MusicManager.QUEUE_LIMIT : Math.min(this.limit, MusicManager.MAX_QUEUE_LIMIT);
+    }
+
+    /**
+     * Gets whether a queue limit is configured.
+     * @return Whether a queue limit is configured.
+     */
+    public boolean hasQueueLimit() {
+        return this.limit != -1;
+    }
+
+    /**
+     * Gets how many seconds before a track ends the next track is prefetched.
+     * @return The configured lead, or {@link MusicServer#PREFETCH_LEAD} if none is configured. Zero disables prefetching.
+     */
+    public int getPrefetchLead() {
+        return (this.prefetch == -1) ? MusicServer.PREFETCH_LEAD : Math.max(0, Math.min(this.prefetch, MusicServer.MAX_PREFETCH_LEAD));
+    }
+
+    /**
+     * Gets whether a prefetch lead is configured.
+     * @return Whether a prefetch lead is configured.
+     */
+    public boolean hasPrefetchLead() {
+        return this.prefetch != -1;
+    }
+
+    /**
+     * Gets whether loud tracks are turned down automatically.
+     * @return The configured setting, or {@code true} if none is configured.
+     */
+    public boolean isNormalising() {
+        return (this.normalise == null) || this.normalise;
+    }
+
+    /**
+     * Gets the volume music is played at, before any normalisation.
+     * @return The configured volume as a percentage, or {@link #DEFAULT_VOLUME} if none is configured.
+     */
+    public int getVolume() {
+        return (this.volume == -1) ? MusicGuildSettings.DEFAULT_VOLUME : this.volume;
+    }
+
+    /**
+     * @param output The ID of the text channel to force messages into, or {@code null} to remove it.
+     * @return A copy of these settings with the output channel changed.
+     */
+    public MusicGuildSettings withOutput(final String output) {
+        return new MusicGuildSettings(output, this.lock, this.limit, this.prefetch, this.normalise, this.volume);
+    }
+
+    /**
+     * @param lock The ID of the voice channel to lock music to, or {@code null} to remove it.
+     * @return A copy of these settings with the locked channel changed.
+     */
+    public MusicGuildSettings withLock(final String lock) {
+        return new MusicGuildSettings(this.output, lock, this.limit, this.prefetch, this.normalise, this.volume);
+    }
+
+    /**
+     * @param limit The maximum number of items the queue may hold.
+     * @return A copy of these settings with the queue limit changed.
+     */
+    public MusicGuildSettings withQueueLimit(final int limit) {
+        return new MusicGuildSettings(this.output, this.lock, limit, this.prefetch, this.normalise, this.volume);
+    }
+
+    /**
+     * @param prefetch How many seconds before a track ends the next track should be prefetched; zero disables prefetching.
+     * @return A copy of these settings with the prefetch lead changed.
+     */
+    public MusicGuildSettings withPrefetchLead(final int prefetch) {
+        return new MusicGuildSettings(this.output, this.lock, this.limit, prefetch, this.normalise, this.volume);
+    }
+
+    /**
+     * @param normalise Whether loud tracks should be turned down automatically.
+     * @return A copy of these settings with normalisation changed.
+     */
+    public MusicGuildSettings withNormalising(final boolean normalise) {
+        return new MusicGuildSettings(this.output, this.lock, this.limit, this.prefetch, normalise, this.volume);
+    }
+
+    /**
+     * @param volume The volume as a percentage.
+     * @return A copy of these settings with the volume changed.
+     */
+    public MusicGuildSettings withVolume(final int volume) {
+        return new MusicGuildSettings(this.output, this.lock, this.limit, this.prefetch, this.normalise, volume);
+    }
+
+}
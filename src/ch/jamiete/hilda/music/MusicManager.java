@@ -15,18 +15,29 @@
  */
 package ch.jamiete.hilda.music;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.source.AudioSourceManagers;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
 import ch.jamiete.hilda.Hilda;
 import ch.jamiete.hilda.Sanity;
 import ch.jamiete.hilda.Util;
-import ch.jamiete.hilda.music.tasks.MusicServerChecker;
 import ch.jamiete.hilda.music.tasks.MusicStartupCheckerTask;
 import ch.jamiete.hilda.plugins.HildaPlugin;
 import net.dv8tion.jda.api.MessageBuilder;
@@ -35,12 +46,18 @@ import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.managers.AudioManager;
+import net.dv8tion.jda.api.utils.cache.MemberCacheView;
 
 public class MusicManager {
     /**
-     * The maximum number of {@link QueueItem}s that can be in a {@link MusicServer} queue.
+     * The default maximum number of {@link QueueItem}s that can be in a {@link MusicServer} queue. Guilds can override this with the {@code limit} configuration key.
      */
     public static final int QUEUE_LIMIT = 100;
+    /**
+     * The highest queue limit a guild can configure.
+     */
+    public static final int MAX_QUEUE_LIMIT = 25000;
     /**
      * The maximum milliseconds a song can be.
      */
@@ -49,6 +66,30 @@ public class MusicManager {
      * The maximum milliseconds a song can be for a DJ.
      */
     public static final long DJ_TIME_LIMIT = 10800000L; // 3 hours
+    /**
+     * The directory recorded tracks are stored in.
+     */
+    private static final String FRAME_CACHE_DIRECTORY = "music-cache";
+    /**
+     * The maximum bytes of recorded tracks stored on disk.
+     */
+    private static final long FRAME_CACHE_BYTES = 1073741824L; // 1 GiB
+    /**
+     * The number of threads shared by every server's mailbox.
+     */
+    private static final int MAILBOX_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    /**
+     * The resolution of the lifecycle timers in milliseconds.
+     */
+    private static final long TIMER_TICK = 100L;
+    /**
+     * The number of buckets in the lifecycle timer wheel; one revolution is a little under a minute.
+     */
+    private static final int TIMER_SLOTS = 512;
+    /**
+     * The seconds a voice connection left open when a server is forgotten may stay open, such as after a reset that couldn't leave the channel.
+     */
+    private static final long UNTRACKED_GRACE = 60L;
 
     /**
      * Converts an {@link AudioTrack} to a human-readable {@link String}.
@@ -56,21 +97,56 @@ public class MusicManager {
      * @return The result of the conversion. Contains spaces and markdown formatting.
      */
     public static String getFriendly(final AudioTrack track) {
+        return MusicManager.getFriendly(track.getInfo());
+    }
+
+    /**
+     * Converts a {@link QueueItem} to a human-readable {@link String}. This does not require the item to be resolved.
+     * @param item The item to convert.
+     * @return The result of the conversion. Contains spaces and markdown formatting.
+     */
+    public static String getFriendly(final QueueItem item) {
+        return MusicManager.getFriendly(item.getInfo());
+    }
+
+    /**
+     * Converts an {@link AudioTrackInfo} to a human-readable {@link String}.
+     * @param info The track information to convert.
+     * @return The result of the conversion. Contains spaces and markdown formatting.
+     */
+    public static String getFriendly(final AudioTrackInfo info) {
         final MessageBuilder mb = new MessageBuilder();
 
-        if (track.getInfo().title != null) {
-            mb.append(track.getInfo().title.replaceAll("\\*", "\\\\*"), MessageBuilder.Formatting.BOLD);
+        if (info.title != null) {
+            mb.append(info.title.replaceAll("\\*", "\\\\*"), MessageBuilder.Formatting.BOLD);
 
-            if (track.getInfo().author != null) {
-                mb.append(" by ").append(track.getInfo().author.replaceAll("\\*", "\\\\*"), MessageBuilder.Formatting.BOLD);
+            if (info.author != null) {
+                mb.append(" by ").append(info.author.replaceAll("\\*", "\\\\*"), MessageBuilder.Formatting.BOLD);
             }
         } else {
-            mb.append(track.getIdentifier());
+            mb.append(info.identifier);
         }
 
         return mb.build().getContentRaw().trim();
     }
 
+    /**
+     * Creates a factory for the daemon threads the manager owns.
+     * @param name The prefix of the threads' names.
+     * @param priority The threads' priority.
+     * @return The factory.
+     */
+    private static ThreadFactory threads(final String name, final int priority) {
+        final AtomicInteger count = new AtomicInteger();
+
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + '-' + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        };
+    }
+
     public static String getFriendlyGuild(final Guild guild) {
         return guild.getName() + " (" + guild.getId() + ')';
     }
@@ -90,14 +166,38 @@ public class MusicManager {
         return sb.toString().trim();
     }
 
-    private int played;
-    private int queued;
+    /**
+     * Converts a {@link QueueItem} to a human-readable {@link String} containing the time of the track. This does not require the item to be resolved.
+     * @param item The item to convert.
+     * @return The result of the conversion.
+     */
+    public static String getFriendlyTime(final QueueItem item) {
+        return Util.getFriendlyTime(item.getDuration()).trim();
+    }
+
+    private final AtomicInteger played = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
 
     private final Hilda hilda;
     private final HildaPlugin plugin;
     private final AudioPlayerManager playerManager;
-    private final List<MusicServer> servers = new ArrayList<>();
-    private final HashMap<Long, Long> recent = new HashMap<>();
+    private final TrackLoader loader;
+    private final FrameCache frames;
+    private final BroadcastHub broadcasts;
+    private final LoudnessCache loudness;
+    private final MusicSettingsStore settings;
+    private final MusicEventDispatcher dispatcher;
+    private final TimerWheel timers = new TimerWheel(MusicManager.TIMER_TICK, TimeUnit.MILLISECONDS, MusicManager.TIMER_SLOTS);
+    private final MessageCoalescer outbound = new MessageCoalescer(this.timers);
+    private final ConcurrentMap<Long, MusicServer> servers = new ConcurrentHashMap<>();
+    private final Collection<MusicServer> view = Collections.unmodifiableCollection(this.servers.values());
+    private final ConcurrentMap<Long, Long> recent = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Set<MusicServer>> occupancy = new ConcurrentHashMap<>();
+    private final Set<MusicServer> lingering = ConcurrentHashMap.newKeySet();
+    private final ExecutorService mailboxes = Executors.newFixedThreadPool(MusicManager.MAILBOX_THREADS, MusicManager.threads("music-mailbox", Thread.NORM_PRIORITY));
+    private final ExecutorService recording = Executors.newSingleThreadExecutor(MusicManager.threads("music-recorder", Thread.NORM_PRIORITY));
+    private final ExecutorService analysis = Executors.newSingleThreadExecutor(MusicManager.threads("music-loudness", Thread.MIN_PRIORITY));
+    private final ScheduledExecutorService pumps = Executors.newSingleThreadScheduledExecutor(MusicManager.threads("music-broadcast", Thread.NORM_PRIORITY));
 
     public MusicManager(final Hilda hilda, final HildaPlugin plugin) {
         this.hilda = hilda;
@@ -106,28 +206,160 @@ public class MusicManager {
         this.playerManager = new DefaultAudioPlayerManager();
         AudioSourceManagers.registerRemoteSources(this.playerManager);
         AudioSourceManagers.registerLocalSource(this.playerManager);
-
-        this.hilda.getExecutor().scheduleAtFixedRate(new MusicServerChecker(this), 15L, 1L, TimeUnit.MINUTES);
+        this.loader = new TrackLoader(this.playerManager, TrackLoader.CACHE_SIZE);
+        this.frames = new FrameCache(new File(MusicManager.FRAME_CACHE_DIRECTORY), MusicManager.FRAME_CACHE_BYTES, this.recording);
+        this.broadcasts = new BroadcastHub(this.playerManager, this.pumps);
+        this.loudness = new LoudnessCache(this.analysis);
+        this.settings = new MusicSettingsStore(this.hilda.getConfigurationManager(), this.plugin, this.hilda.getExecutor());
+
+        this.dispatcher = new MusicEventDispatcher(this);
+        this.hilda.getBot().addEventListener(this.dispatcher);
     }
 
     public int getNumber() {
-        synchronized (this.servers) {
-            return this.servers.size();
+        return this.servers.size();
+    }
+
+    /**
+     * Gets the servers waiting to leave their voice channel.
+     * @return An unmodifiable view of the lingering servers.
+     */
+    public final Collection<MusicServer> getLingering() {
+        return Collections.unmodifiableSet(this.lingering);
+    }
+
+    /**
+     * Finds the members of a server's guild who are in the channel of any other server that is playing. Whichever is smaller of the guild's
+     * member cache and the occupancy index is walked, with one lookup in the other for each entry, so a small guild never pays for every user in
+     * every music channel.
+     * @param server The server to check for.
+     * @return The IDs of the users found.
+     */
+    final Set<Long> getListenersElsewhere(final MusicServer server) {
+        final Set<Long> found = new HashSet<>();
+        final MemberCacheView members = server.getGuild().getMemberCache();
+
+        if (members.size() < this.occupancy.size()) {
+            for (final Member member : members) {
+                if (this.isListeningElsewhere(member.getIdLong(), server)) {
+                    found.add(member.getIdLong());
+                }
+            }
+        } else {
+            for (final Long user : this.occupancy.keySet()) {
+                if ((members.getElementById(user) != null) && this.isListeningElsewhere(user, server)) {
+                    found.add(user);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Checks whether a user is in the channel of a server other than the one given that is playing.
+     * @param user The user ID.
+     * @param server The server to ignore.
+     * @return Whether the user is listening elsewhere.
+     */
+    final boolean isListeningElsewhere(final long user, final MusicServer server) {
+        final Set<MusicServer> servers = this.occupancy.get(user);
+
+        if (servers == null) {
+            return false;
+        }
+
+        for (final MusicServer other : servers) {
+            if ((other != server) && (other.getPlayer().getPlayingTrack() != null)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Records that a user is in a server's voice channel.
+     * @param user The user ID.
+     * @param server The server.
+     */
+    final void occupy(final long user, final MusicServer server) {
+        this.occupancy.compute(user, (id, servers) -> {
+            final Set<MusicServer> result = (servers == null) ? ConcurrentHashMap.newKeySet() : servers;
+            result.add(server);
+            return result;
+        });
+    }
+
+    /**
+     * Records that a server is or is no longer waiting to leave its voice channel.
+     * @param server The server.
+     * @param lingering Whether it is waiting to leave.
+     */
+    final void setLingering(final MusicServer server, final boolean lingering) {
+        if (lingering) {
+            this.lingering.add(server);
+        } else {
+            this.lingering.remove(server);
+        }
+    }
+
+    /**
+     * Records that a user is no longer in a server's voice channel.
+     * @param user The user ID.
+     * @param server The server.
+     */
+    final void vacate(final long user, final MusicServer server) {
+        this.occupancy.computeIfPresent(user, (id, servers) -> {
+            servers.remove(server);
+            return servers.isEmpty() ? null : servers;
+        });
+    }
+
+    /**
+     * Gets the number of servers lingering with their players released.
+     * @return The number of hibernating servers.
+     */
+    public final int getHibernatingCount() {
+        int count = 0;
+
+        for (final MusicServer server : this.servers.values()) {
+            if (server.isHibernating()) {
+                count++;
+            }
         }
+
+        return count;
+    }
+
+    /**
+     * Gets the number of servers with live players.
+     * @return The number of servers that are not hibernating.
+     */
+    public final int getActiveCount() {
+        return this.servers.size() - this.getHibernatingCount();
     }
 
     /**
      * Increment the number of songs played this session.
      */
     public final void addPlayed() {
-        this.played++;
+        this.played.incrementAndGet();
     }
 
     /**
      * Increment the number of songs queued this session.
      */
     public final void addQueued() {
-        this.queued++;
+        this.queued.incrementAndGet();
+    }
+
+    /**
+     * Increase the number of songs queued this session.
+     * @param count The number of songs queued.
+     */
+    public final void addQueued(final int count) {
+        this.queued.addAndGet(count);
     }
 
     /**
@@ -145,16 +377,50 @@ public class MusicManager {
      * @throws IllegalArgumentException If the Guild already has a server associated with it.
      */
     public final MusicServer createServer(final Guild guild) {
-        Sanity.truthiness(!this.hasServer(guild), "A server with the guild " + guild.getId() + " already exists.");
+        final MusicServer server = this.register(guild);
+
+        Sanity.truthiness(server != null, "A server with the guild " + guild.getId() + " already exists.");
 
-        final MusicServer server = new MusicServer(this, this.playerManager.createPlayer(), guild);
+        return server;
+    }
+
+    /**
+     * Gets the {@link MusicServer} for a {@link Guild}, atomically creating one if none exists.
+     * @param guild The Guild the server should represent.
+     * @return The existing or newly created {@link MusicServer}.
+     */
+    public final MusicServer getOrCreateServer(final Guild guild) {
+        while (true) {
+            final MusicServer server = this.servers.get(guild.getIdLong());
+
+            if (server != null) {
+                return server;
+            }
 
-        synchronized (this.servers) {
-            this.servers.add(server);
+            final MusicServer created = this.register(guild);
+
+            if (created != null) {
+                return created;
+            }
         }
+    }
+
+    /**
+     * Constructs a {@link MusicServer} outside the registry and publishes it if the guild has no server yet. The winner is attached to its guild
+     * and has its startup check scheduled; a server that loses the race is discarded.
+     * @param guild The Guild the server should represent.
+     * @return The new {@link MusicServer} or {@code null} if another server was registered for the guild first.
+     */
+    private MusicServer register(final Guild guild) {
+        final MusicServer server = new MusicServer(this, this.playerManager.createPlayer(), this.playerManager.createPlayer(), guild);
 
-        this.hilda.getExecutor().schedule(new MusicStartupCheckerTask(server), 90L, TimeUnit.SECONDS);
+        if (this.servers.putIfAbsent(guild.getIdLong(), server) != null) {
+            server.discard();
+            return null;
+        }
 
+        server.attach();
+        this.timers.schedule(new MusicStartupCheckerTask(server), 90L, TimeUnit.SECONDS);
         return server;
     }
 
@@ -166,6 +432,221 @@ public class MusicManager {
         return this.playerManager;
     }
 
+    /**
+     * Gets the loader that resolves URLs and searches to tracks.
+     * @return The TrackLoader instance.
+     */
+    public final TrackLoader getLoader() {
+        return this.loader;
+    }
+
+    /**
+     * Measures the loudness of a track in the background if it has been recorded and not yet measured.
+     * @param identifier The identifier of the track.
+     */
+    final void analyse(final String identifier) {
+        final FrameCache.Lease lease = this.frames.acquire(identifier);
+
+        if (lease != null) {
+            this.loudness.request(identifier, lease.getFrames(), lease::release);
+        }
+    }
+
+    /**
+     * Gets the number of live streams currently shared between servers.
+     * @return The number of upstream players.
+     */
+    public final int getBroadcastCount() {
+        return this.broadcasts.getBroadcasts();
+    }
+
+    /**
+     * Gets the number of servers playing a shared live stream.
+     * @return The number of subscribers.
+     */
+    public final int getBroadcastSubscribers() {
+        return this.broadcasts.getSubscribers();
+    }
+
+    /**
+     * Gets the volume a track should be played at to bring it down to the normalisation target.
+     * @param identifier The identifier of the track.
+     * @return The volume as a percentage; 100 unless the track has been measured as loud.
+     */
+    final int getGain(final String identifier) {
+        return this.loudness.getGain(identifier);
+    }
+
+    /**
+     * Gets the number of tracks whose loudness has been measured.
+     * @return The number of tracks.
+     */
+    public final long getLoudnessAnalysed() {
+        return this.loudness.getAnalysed();
+    }
+
+    /**
+     * Gets the number of servers whose player is currently decoding and re-encoding audio for a reason.
+     * @param reason The reason.
+     * @return The number of servers.
+     */
+    public final int getTranscoding(final TranscodeReason reason) {
+        int count = 0;
+
+        for (final MusicServer server : this.servers.values()) {
+            if (server.getTranscodeReason() == reason) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Gets the hub live streams are shared through.
+     * @return The BroadcastHub instance.
+     */
+    final BroadcastHub getBroadcastHub() {
+        return this.broadcasts;
+    }
+
+    /**
+     * Gets the pool every server's mailbox runs on.
+     * @return The pool.
+     */
+    final Executor getMailboxPool() {
+        return this.mailboxes;
+    }
+
+    /**
+     * Gets the wheel lifecycle timers are scheduled on.
+     * @return The TimerWheel instance.
+     */
+    final TimerWheel getTimers() {
+        return this.timers;
+    }
+
+    /**
+     * Gets the number of lifecycle timers that have been scheduled and have neither fired nor been cancelled.
+     * @return The number of timers.
+     */
+    public final int getOutstandingTimers() {
+        return this.timers.getOutstanding();
+    }
+
+    /**
+     * Gets the buffer music notifications are sent through.
+     * @return The MessageCoalescer instance.
+     */
+    final MessageCoalescer getOutbound() {
+        return this.outbound;
+    }
+
+    /**
+     * Gets the number of notification lines waiting to be sent.
+     * @return The number of lines.
+     */
+    public final int getOutboundDepth() {
+        return this.outbound.getDepth();
+    }
+
+    /**
+     * Gets the average number of notification lines merged into each message sent.
+     * @return The ratio.
+     */
+    public final double getOutboundMergeRatio() {
+        return this.outbound.getMergeRatio();
+    }
+
+    /**
+     * Gets the number of announcements dropped because a newer one replaced them before they were sent.
+     * @return The number of announcements.
+     */
+    public final long getOutboundSuperseded() {
+        return this.outbound.getSuperseded();
+    }
+
+    /**
+     * Gets the current music settings of a guild.
+     * @param guild The guild.
+     * @return The settings.
+     */
+    public final MusicGuildSettings getSettings(final Guild guild) {
+        return this.settings.get(guild.getId());
+    }
+
+    /**
+     * Changes the music settings of a guild. The change takes effect immediately and is saved in the background.
+     * @param guild The guild.
+     * @param change The change to apply to the current settings.
+     * @return The new settings.
+     */
+    public final MusicGuildSettings updateSettings(final Guild guild, final UnaryOperator<MusicGuildSettings> change) {
+        return this.settings.update(guild.getId(), change);
+    }
+
+    /**
+     * Saves any changes to music settings that have not been saved yet.
+     */
+    public final void saveSettings() {
+        this.settings.save();
+    }
+
+    /**
+     * Gets the on-disk cache of recorded tracks.
+     * @return The FrameCache instance.
+     */
+    final FrameCache getFrameCache() {
+        return this.frames;
+    }
+
+    /**
+     * Gets the number of plays served from recorded frames instead of the remote source.
+     * @return The number of plays.
+     */
+    public final long getFrameCacheHits() {
+        return this.frames.getHits();
+    }
+
+    /**
+     * Gets the disk space used by recorded tracks.
+     * @return The size in bytes.
+     */
+    public final long getFrameCacheBytes() {
+        return this.frames.getBytes();
+    }
+
+    /**
+     * Stops the manager: every server is shut down, pending settings are saved and the threads owned by the manager are stopped. The manager
+     * cannot be used afterwards.
+     */
+    public final void shutdown() {
+        this.hilda.getBot().removeEventListener(this.dispatcher);
+
+        for (final MusicServer server : this.servers.values()) {
+            server.execute(() -> server.shutdownNow(true));
+        }
+
+        this.mailboxes.shutdown();
+
+        try {
+            if (!this.mailboxes.awaitTermination(5L, TimeUnit.SECONDS)) {
+                this.mailboxes.shutdownNow();
+            }
+        } catch (final InterruptedException e) {
+            this.mailboxes.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        // Only once the servers have shut down, so the timers, frames and measurements they leave behind are not cut off
+        this.timers.stop();
+        this.broadcasts.shutdown();
+        this.pumps.shutdownNow();
+        this.recording.shutdown();
+        this.analysis.shutdownNow();
+        this.settings.save();
+    }
+
     public final Hilda getHilda() {
         return this.hilda;
     }
@@ -175,7 +656,7 @@ public class MusicManager {
      * @return The number of songs played this session.
      */
     public final int getPlayed() {
-        return this.played;
+        return this.played.get();
     }
 
     public final HildaPlugin getPlugin() {
@@ -187,7 +668,35 @@ public class MusicManager {
      * @return The number of songs queued this session.
      */
     public final int getQueued() {
-        return this.queued;
+        return this.queued.get();
+    }
+
+    /**
+     * Get the approximate heap used by queue items across every server.
+     * @return The size in bytes.
+     */
+    public final long getQueueFootprint() {
+        long footprint = 0L;
+
+        for (final MusicServer server : this.servers.values()) {
+            footprint += server.getQueueFootprint();
+        }
+
+        return footprint;
+    }
+
+    /**
+     * Get the number of items queued across every server.
+     * @return The number of items queued.
+     */
+    public final long getQueueItems() {
+        long items = 0L;
+
+        for (final MusicServer server : this.servers.values()) {
+            items += server.getQueueSize();
+        }
+
+        return items;
     }
 
     /**
@@ -205,25 +714,15 @@ public class MusicManager {
      * @return The {@link MusicServer} related to the guild or {@code null} if no server exists.
      */
     public final MusicServer getServer(final Guild guild) {
-        synchronized (this.servers) {
-            for (final MusicServer server : this.servers) {
-                if (server.getGuild() == guild) {
-                    return server;
-                }
-            }
-        }
-
-        return null;
+        return this.servers.get(guild.getIdLong());
     }
 
     /**
      * Lists the servers registered.
-     * @return A {@link MusicServer} array containing all registered servers.
+     * @return An unmodifiable, weakly consistent view of all registered servers. Iterating it never blocks registration.
      */
-    public final List<MusicServer> getServers() {
-        synchronized (this.servers) {
-            return Util.unmodifiableList(this.servers);
-        }
+    public final Collection<MusicServer> getServers() {
+        return this.view;
     }
 
     /**
@@ -269,8 +768,35 @@ public class MusicManager {
      * @param server The server to forget.
      */
     public final void removeServer(final MusicServer server) {
-        synchronized (this.servers) {
-            this.servers.remove(server);
+        final long id = server.getGuild().getIdLong();
+
+        if (this.servers.remove(id, server)) {
+            this.timers.schedule(() -> this.hilda.getExecutor().execute(() -> this.disconnectUntracked(id)), MusicManager.UNTRACKED_GRACE, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Closes every voice connection that no server is tracking. Only guilds whose audio manager has been used are examined.
+     */
+    final void disconnectUntracked() {
+        for (final AudioManager audio : this.hilda.getBot().getAudioManagers()) {
+            if (audio.isConnected() && (this.getServer(audio.getGuild()) == null)) {
+                Hilda.getLogger().info("Disconnecting from voice chat in untracked server " + audio.getGuild().getName());
+                audio.closeAudioConnection();
+            }
+        }
+    }
+
+    /**
+     * Closes the voice connection of a guild if it is still open and no server is tracking it.
+     * @param id The guild ID.
+     */
+    private void disconnectUntracked(final long id) {
+        final Guild guild = this.hilda.getBot().getGuildById(id);
+
+        if ((guild != null) && guild.getAudioManager().isConnected() && (this.getServer(guild) == null)) {
+            Hilda.getLogger().info("Disconnecting from voice chat in untracked server " + guild.getName());
+            guild.getAudioManager().closeAudioConnection();
         }
     }
 
@@ -34,8 +34,10 @@ public class MusicPlugin extends HildaPlugin {
     @Override
     public final void onDisable() {
         for (final MusicServer server : this.music.getServers()) {
-            server.sendMessage("Sorry, I'm shutting down mid-queue! See you soon.");
+            server.sendMessageNow("Sorry, I'm shutting down mid-queue! See you soon.");
         }
+
+        this.music.shutdown();
     }
 
     @Override
@@ -0,0 +1,624 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+/**
+ * The queue of a {@link MusicServer}. <p>
+ * Items are held in a persistent implicit treap (a randomly balanced binary tree ordered by position, whose nodes are never modified once built),
+ * so reading, inserting and removing at any index, moving an item and slicing a page all cost O(log n). Each node also carries the size and
+ * total duration of its subtree. <p>
+ * Writers are serialised and publish each new tree with a single volatile write. Readers never lock: they read the current root and see a
+ * consistent, immutable version of the queue for as long as they hold it. A count of queued track identifiers is kept alongside the tree so
+ * duplicate checks do not need to walk it. <p>
+ * Every node also carries an order key that increases along the queue. Writers keep each item's key, and the item holding each resolved track,
+ * so an item or track can be found and removed in O(log n) without knowing its position.
+ */
+class MusicQueue {
+    /**
+     * The space left between the order keys of neighbouring items when they are numbered, so items can be moved between them.
+     */
+    private static final long GAP = 1L << 20;
+
+    private volatile Node root = null;
+    private final Map<String, Integer> identifiers = new ConcurrentHashMap<>();
+    private final Map<QueueItem, Long> orders = new IdentityHashMap<>();
+    private final Map<AudioTrack, QueueItem> tracks = new IdentityHashMap<>();
+
+    /**
+     * Adds an item to the end of the queue.
+     * @param item The item to add.
+     */
+    synchronized void add(final QueueItem item) {
+        final long order = this.after(this.root);
+        this.root = MusicQueue.merge(this.root, this.node(item, order));
+    }
+
+    /**
+     * Adds several items to the end of the queue as one change. Items whose track is already queued or repeated earlier in the batch are skipped,
+     * as is every item beyond the limit.
+     * @param items The items to add, in order.
+     * @param limit The maximum size of the queue.
+     * @return The items that were added.
+     */
+    synchronized List<QueueItem> addAll(final List<QueueItem> items, final int limit) {
+        final int space = limit - MusicQueue.size(this.root);
+        final List<QueueItem> accepted = new ArrayList<>(Math.max(0, Math.min(space, items.size())));
+        final Set<String> seen = new HashSet<>();
+        Node batch = null;
+        long order = this.after(this.root);
+
+        for (final QueueItem item : items) {
+            if (accepted.size() >= space) {
+                break;
+            }
+
+            final String key = MusicQueue.key(item.getIdentifier());
+
+            if (this.identifiers.containsKey(key) || !seen.add(key)) {
+                continue;
+            }
+
+            batch = MusicQueue.merge(batch, this.node(item, order));
+            accepted.add(item);
+            order += MusicQueue.GAP;
+        }
+
+        this.root = MusicQueue.merge(this.root, batch);
+
+        return accepted;
+    }
+
+    /**
+     * Adds an item to the front of the queue.
+     * @param item The item to add.
+     */
+    synchronized void addFirst(final QueueItem item) {
+        if ((this.root != null) && (MusicQueue.first(this.root).order < (Long.MIN_VALUE + MusicQueue.GAP))) {
+            this.root = this.renumber(this.root);
+        }
+
+        final long order = (this.root == null) ? 0L : (MusicQueue.first(this.root).order - MusicQueue.GAP);
+        this.root = MusicQueue.merge(this.node(item, order), this.root);
+    }
+
+    /**
+     * Removes every item from the queue.
+     */
+    synchronized void clear() {
+        this.root = null;
+        this.identifiers.clear();
+        this.orders.clear();
+        this.tracks.clear();
+    }
+
+    /**
+     * Checks whether a track with the identifier is queued. Identifiers are compared ignoring case.
+     * @param identifier The identifier to test.
+     * @return Whether a track with the identifier is queued.
+     */
+    boolean contains(final String identifier) {
+        return this.identifiers.containsKey(MusicQueue.key(identifier));
+    }
+
+    /**
+     * Gets the item at a position in the queue.
+     * @param index The zero-based position.
+     * @return The item or {@code null} if the position is outside the queue.
+     */
+    QueueItem get(final int index) {
+        return MusicQueue.get(this.root, index);
+    }
+
+    /**
+     * Gets the summed duration of every queued track.
+     * @return The duration in ms.
+     */
+    long getDuration() {
+        return MusicQueue.duration(this.root);
+    }
+
+    /**
+     * Gets the approximate heap used by the queued items.
+     * @return The size in bytes.
+     */
+    long getFootprint() {
+        return MusicQueue.footprint(this.root);
+    }
+
+    boolean isEmpty() {
+        return this.root == null;
+    }
+
+    /**
+     * Moves an item to a new position.
+     * @param from The current zero-based position of the item.
+     * @param to The zero-based position the item should occupy afterwards.
+     * @return The moved item or {@code null} if either position is outside the queue.
+     */
+    synchronized QueueItem move(final int from, final int to) {
+        final int size = MusicQueue.size(this.root);
+
+        if ((from < 0) || (from >= size) || (to < 0) || (to >= size)) {
+            return null;
+        }
+
+        final Node[] before = MusicQueue.split(this.root, from);
+        final Node[] after = MusicQueue.split(before[1], 1);
+        Node[] target = MusicQueue.split(MusicQueue.merge(before[0], after[1]), to);
+
+        if ((target[0] != null) && (target[1] != null) && ((MusicQueue.first(target[1]).order - MusicQueue.last(target[0]).order) < 2L)) {
+            // No key is left between the neighbours, so spread the rest of the queue out again
+            target = MusicQueue.split(this.renumber(MusicQueue.merge(target[0], target[1])), to);
+        }
+
+        final long order;
+
+        if (target[0] == null) {
+            order = (target[1] == null) ? 0L : (MusicQueue.first(target[1]).order - MusicQueue.GAP);
+        } else if (target[1] == null) {
+            order = MusicQueue.last(target[0]).order + MusicQueue.GAP;
+        } else {
+            order = MusicQueue.last(target[0]).order + ((MusicQueue.first(target[1]).order - MusicQueue.last(target[0]).order) / 2L);
+        }
+
+        final QueueItem item = after[0].item;
+
+        this.unindex(item);
+        this.root = MusicQueue.merge(MusicQueue.merge(target[0], this.node(item, order)), target[1]);
+        return item;
+    }
+
+    /**
+     * Gets the item at the front of the queue.
+     * @return The first item or {@code null} if the queue is empty.
+     */
+    QueueItem peek() {
+        return this.get(0);
+    }
+
+    /**
+     * Removes an item from the queue.
+     * @param item The item to remove.
+     * @return Whether the item was queued.
+     */
+    synchronized boolean remove(final QueueItem item) {
+        final int index = this.indexOf(item);
+
+        if (index == -1) {
+            return false;
+        }
+
+        this.removeAt(index);
+        return true;
+    }
+
+    /**
+     * Removes the item at a position, provided it is still the expected item. If the queue has changed since the position was read the item is
+     * looked up by its order key instead.
+     * @param index The zero-based position the item was read from.
+     * @param item The item expected at that position.
+     * @return Whether the item was queued.
+     */
+    synchronized boolean remove(final int index, final QueueItem item) {
+        if (this.get(index) != item) {
+            return this.remove(item);
+        }
+
+        this.removeAt(index);
+        return true;
+    }
+
+    /**
+     * Removes the item holding the track, if it is queued.
+     * @param track The track to remove.
+     */
+    synchronized void removeTrack(final AudioTrack track) {
+        final QueueItem item = this.tracks.get(track);
+
+        if (item != null) {
+            this.remove(item);
+        }
+    }
+
+    /**
+     * Resolves an item so it is ready to play. If the item is queued its node is rebuilt, as resolving changes the item's footprint.
+     * @param item The item to resolve, which need not be queued.
+     * @return Whether the item is now resolved.
+     */
+    synchronized boolean resolve(final QueueItem item) {
+        if (item.isResolved()) {
+            return true;
+        }
+
+        if (!item.resolve()) {
+            return false;
+        }
+
+        final int index = this.indexOf(item);
+
+        if (index != -1) {
+            final Node[] before = MusicQueue.split(this.root, index);
+            final Node[] after = MusicQueue.split(before[1], 1);
+
+            this.tracks.put(item.getTrack(), item);
+            this.root = MusicQueue.merge(MusicQueue.merge(before[0], new Node(item, after[0].order)), after[1]);
+        }
+
+        return true;
+    }
+
+    /**
+     * Shuffles the queue. The index and duration are unaffected by ordering.
+     */
+    synchronized void shuffle() {
+        final List<QueueItem> items = new ArrayList<>(this.snapshot());
+        Collections.shuffle(items);
+
+        this.root = this.build(items);
+    }
+
+    int size() {
+        return MusicQueue.size(this.root);
+    }
+
+    /**
+     * Gets part of the queue.
+     * @param from The zero-based position of the first item, inclusive.
+     * @param to The zero-based position of the last item, exclusive.
+     * @return A list of the items in range. Positions outside the queue are ignored.
+     */
+    List<QueueItem> slice(final int from, final int to) {
+        final Node node = this.root;
+        final int start = Math.max(0, from);
+        final int end = Math.min(to, MusicQueue.size(node));
+        final List<QueueItem> out = new ArrayList<>(Math.max(0, end - start));
+
+        MusicQueue.collect(node, start, end, 0, out);
+
+        return out;
+    }
+
+    /**
+     * Gets the current version of the queue. This does not copy the queue; later changes to the queue are not reflected in the returned list.
+     * @return An unmodifiable list of the queue.
+     */
+    List<QueueItem> snapshot() {
+        return new Snapshot(this.root);
+    }
+
+    /**
+     * Gets the order key for an item added to the end of a tree, renumbering the queue first if the keys have run out.
+     */
+    private long after(final Node node) {
+        if (node == null) {
+            return 0L;
+        }
+
+        if (MusicQueue.last(node).order > (Long.MAX_VALUE / 2L)) {
+            this.root = this.renumber(this.root);
+            return this.after(this.root);
+        }
+
+        return MusicQueue.last(node).order + MusicQueue.GAP;
+    }
+
+    /**
+     * Builds a tree of items in order, numbering them afresh.
+     */
+    private Node build(final List<QueueItem> items) {
+        Node built = null;
+        long order = 0L;
+
+        for (final QueueItem item : items) {
+            built = MusicQueue.merge(built, new Node(item, order));
+            this.orders.put(item, order);
+            order += MusicQueue.GAP;
+        }
+
+        return built;
+    }
+
+    private int indexOf(final QueueItem item) {
+        final Long order = this.orders.get(item);
+        return (order == null) ? -1 : MusicQueue.rank(this.root, order);
+    }
+
+    /**
+     * Creates the node for an item joining the queue and indexes it.
+     */
+    private Node node(final QueueItem item, final long order) {
+        this.identifiers.merge(MusicQueue.key(item.getIdentifier()), 1, Integer::sum);
+        this.orders.put(item, order);
+
+        if (item.getTrack() != null) {
+            this.tracks.put(item.getTrack(), item);
+        }
+
+        return new Node(item, order);
+    }
+
+    /**
+     * Rebuilds a tree with evenly spaced order keys. This costs O(n), but is only needed once the keys between two items run out.
+     */
+    private Node renumber(final Node node) {
+        return this.build(new ArrayList<>(new Snapshot(node)));
+    }
+
+    private void removeAt(final int index) {
+        final Node[] before = MusicQueue.split(this.root, index);
+        final Node[] after = MusicQueue.split(before[1], 1);
+
+        this.root = MusicQueue.merge(before[0], after[1]);
+        this.unindex(after[0].item);
+    }
+
+    private void unindex(final QueueItem item) {
+        this.identifiers.computeIfPresent(MusicQueue.key(item.getIdentifier()), (k, v) -> (v == 1) ? null : (v - 1));
+        this.orders.remove(item);
+
+        if (item.getTrack() != null) {
+            this.tracks.remove(item.getTrack(), item);
+        }
+    }
+
+    /**
+     * Appends the items of a subtree whose positions fall in [from, to) to a list, in order. Subtrees outside the range are not visited.
+     */
+    private static void collect(final Node node, final int from, final int to, final int offset, final List<QueueItem> out) {
+        if ((node == null) || (from >= to)) {
+            return;
+        }
+
+        final int position = offset + MusicQueue.size(node.left);
+
+        if (from < position) {
+            MusicQueue.collect(node.left, from, to, offset, out);
+        }
+
+        if ((from <= position) && (position < to)) {
+            out.add(node.item);
+        }
+
+        if (to > (position + 1)) {
+            MusicQueue.collect(node.right, from, to, position + 1, out);
+        }
+    }
+
+    private static long duration(final Node node) {
+        return (node == null) ? 0L : node.duration;
+    }
+
+    private static Node first(final Node node) {
+        Node first = node;
+
+        while (first.left != null) {
+            first = first.left;
+        }
+
+        return first;
+    }
+
+    private static long footprint(final Node node) {
+        return (node == null) ? 0L : node.footprint;
+    }
+
+    private static QueueItem get(final Node root, final int index) {
+        if ((index < 0) || (index >= MusicQueue.size(root))) {
+            return null;
+        }
+
+        Node node = root;
+        int i = index;
+
+        while (true) {
+            final int left = MusicQueue.size(node.left);
+
+            if (i < left) {
+                node = node.left;
+            } else if (i == left) {
+                return node.item;
+            } else {
+                i -= left + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    private static Node last(final Node node) {
+        Node last = node;
+
+        while (last.right != null) {
+            last = last.right;
+        }
+
+        return last;
+    }
+
+    private static String key(final String identifier) {
+        return identifier.toLowerCase(Locale.ROOT);
+    }
+
+    private static Node merge(final Node left, final Node right) {
+        if (left == null) {
+            return right;
+        }
+
+        if (right == null) {
+            return left;
+        }
+
+        if (left.priority > right.priority) {
+            return new Node(left, left.left, MusicQueue.merge(left.right, right));
+        }
+
+        return new Node(right, MusicQueue.merge(left, right.left), right.right);
+    }
+
+    /**
+     * Finds the position of the node with an order key.
+     * @return The zero-based position or {@code -1} if no node has the key.
+     */
+    private static int rank(final Node root, final long order) {
+        Node node = root;
+        int rank = 0;
+
+        while (node != null) {
+            if (order < node.order) {
+                node = node.left;
+            } else if (order > node.order) {
+                rank += MusicQueue.size(node.left) + 1;
+                node = node.right;
+            } else {
+                return rank + MusicQueue.size(node.left);
+            }
+        }
+
+        return -1;
+    }
+
+    private static int size(final Node node) {
+        return (node == null) ? 0 : node.size;
+    }
+
+    /**
+     * Splits a subtree into its first {@code count} items and the rest. The subtree itself is left untouched.
+     */
+    private static Node[] split(final Node node, final int count) {
+        if (node == null) {
+            return new Node[2];
+        }
+
+        final Node[] parts;
+
+        if (count <= MusicQueue.size(node.left)) {
+            parts = MusicQueue.split(node.left, count);
+            parts[1] = new Node(node, parts[1], node.right);
+        } else {
+            parts = MusicQueue.split(node.right, count - MusicQueue.size(node.left) - 1);
+            parts[0] = new Node(node, node.left, parts[0]);
+        }
+
+        return parts;
+    }
+
+    private static final class Node {
+        private final QueueItem item;
+        private final long order;
+        private final int priority;
+        private final Node left;
+        private final Node right;
+        private final int size;
+        private final long duration;
+        private final long footprint;
+
+        private Node(final QueueItem item, final long order) {
+            this.item = item;
+            this.order = order;
+            this.priority = ThreadLocalRandom.current().nextInt();
+            this.left = null;
+            this.right = null;
+            this.size = 1;
+            this.duration = item.getDuration();
+            this.footprint = item.getFootprint();
+        }
+
+        /**
+         * Copies a node with new children.
+         */
+        private Node(final Node node, final Node left, final Node right) {
+            this.item = node.item;
+            this.order = node.order;
+            this.priority = node.priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + MusicQueue.size(left) + MusicQueue.size(right);
+            this.duration = node.item.getDuration() + MusicQueue.duration(left) + MusicQueue.duration(right);
+            this.footprint = node.item.getFootprint() + MusicQueue.footprint(left) + MusicQueue.footprint(right);
+        }
+    }
+
+    /**
+     * An immutable view of one version of the queue.
+     */
+    private static final class Snapshot extends AbstractList<QueueItem> {
+        private final Node root;
+
+        private Snapshot(final Node root) {
+            this.root = root;
+        }
+
+        @Override
+        public QueueItem get(final int index) {
+            if ((index < 0) || (index >= this.size())) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size());
+            }
+
+            return MusicQueue.get(this.root, index);
+        }
+
+        @Override
+        public Iterator<QueueItem> iterator() {
+            return new Iterator<QueueItem>() {
+                private final Deque<Node> stack = new ArrayDeque<>();
+                private Node next = Snapshot.this.root;
+
+                @Override
+                public boolean hasNext() {
+                    return (this.next != null) || !this.stack.isEmpty();
+                }
+
+                @Override
+                public QueueItem next() {
+                    while (this.next != null) {
+                        this.stack.push(this.next);
+                        this.next = this.next.left;
+                    }
+
+                    if (this.stack.isEmpty()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    final Node node = this.stack.pop();
+                    this.next = node.right;
+                    return node.item;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return MusicQueue.size(this.root);
+        }
+    }
+
+}
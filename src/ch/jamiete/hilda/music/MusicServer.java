@@ -16,14 +16,13 @@
 package ch.jamiete.hilda.music;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.List;
-import java.util.Optional;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
-import com.google.gson.JsonElement;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
 import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
 import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
@@ -32,47 +31,103 @@ import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
 import ch.jamiete.hilda.Hilda;
 import ch.jamiete.hilda.Util;
 import ch.jamiete.hilda.configuration.Configuration;
-import ch.jamiete.hilda.events.EventHandler;
 import ch.jamiete.hilda.music.tasks.MusicLeaveTask;
 import ch.jamiete.hilda.runnables.GameSetTask;
 import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.*;
-import net.dv8tion.jda.api.events.Event;
+import net.dv8tion.jda.api.events.guild.voice.GenericGuildVoiceEvent;
 import net.dv8tion.jda.api.events.guild.voice.GuildVoiceDeafenEvent;
 import net.dv8tion.jda.api.events.guild.voice.GuildVoiceLeaveEvent;
 import net.dv8tion.jda.api.events.guild.voice.GuildVoiceMoveEvent;
 import net.dv8tion.jda.api.events.guild.voice.GuildVoiceMuteEvent;
+import net.dv8tion.jda.api.events.guild.voice.GuildVoiceUpdateEvent;
 import net.dv8tion.jda.api.exceptions.PermissionException;
 
 /**
  * This class represents a {@link Guild} that music is being played on.
  */
 public class MusicServer extends AudioEventAdapter {
+    /**
+     * The number of items at the head of the queue that are resolved ahead of being played.
+     */
+    private static final int RESOLVE_AHEAD = 2;
+    /**
+     * The default number of seconds before a track ends that the next track is prefetched. Guilds can override this with the {@code prefetch}
+     * configuration key.
+     */
+    public static final int PREFETCH_LEAD = 10;
+    /**
+     * The most seconds a guild can configure the prefetch lead to.
+     */
+    public static final int MAX_PREFETCH_LEAD = 60;
+    /**
+     * The seconds after a change in playback that the server checks it is still healthy.
+     */
+    private static final long WATCHDOG_DEADLINE = 5L;
+
     private final MusicManager manager;
-    private final AudioPlayer player;
+    private final AudioPlayerSendHandler handler;
+    private final Mailbox mailbox;
     private final Configuration config;
 
+    private volatile AudioPlayer player;
+    private volatile AudioPlayer standby;
+    private QueueItem warmed = null;
+    private TimerWheel.Timeout prefetch = null;
+    private TimerWheel.Timeout watchdog = null;
+
+    private volatile boolean hibernating = false;
+    private volatile TranscodeReason transcoding = null;
+
     private final Guild guild;
-    private VoiceChannel channel = null;
+    private volatile VoiceChannel channel = null;
+    private volatile TextChannel output = null;
 
-    private boolean stopping;
-    private ScheduledFuture<?> task = null;
+    private volatile boolean stopping;
+    private volatile TimerWheel.Timeout task = null;
 
-    private final List<QueueItem> queue = Collections.synchronizedList(new ArrayList<QueueItem>());
-    private final List<String> skips = new ArrayList<>();
+    private final MusicQueue queue = new MusicQueue();
+    private final Set<Long> skips = ConcurrentHashMap.newKeySet();
+    private final Set<Long> listeners = ConcurrentHashMap.newKeySet();
+    private final Set<Long> occupants = ConcurrentHashMap.newKeySet();
+    private final Set<Long> blockers = ConcurrentHashMap.newKeySet();
 
-    private QueueItem now = null;
+    private volatile QueueItem now = null;
 
     private String lastplaying = null;
 
-    public MusicServer(final MusicManager manager, final AudioPlayer player, final Guild guild) {
+    /**
+     * @param manager The manager the server belongs to.
+     * @param player The player to play through.
+     * @param standby A second player the next track is prefetched into, which becomes the playing player when it starts.
+     * @param guild The guild the server represents.
+     */
+    public MusicServer(final MusicManager manager, final AudioPlayer player, final AudioPlayer standby, final Guild guild) {
         this.manager = manager;
         this.player = player;
         this.player.addListener(this);
+        this.standby = standby;
+        this.standby.addListener(this);
         this.guild = guild;
-        this.guild.getAudioManager().setSendingHandler(new AudioPlayerSendHandler(player));
+        this.handler = new AudioPlayerSendHandler(player);
+        this.mailbox = new Mailbox(manager.getMailboxPool());
         this.config = this.manager.getHilda().getConfigurationManager().getConfiguration(this.manager.getPlugin(), this.guild.getId());
-        this.manager.getHilda().getBot().addEventListener(this);
+    }
+
+    /**
+     * Adds a skip to the currently playing song.
+     * @param user The ID of the user skipping the song.
+     */
+    public final void addSkip(final long user) {
+        this.skips.add(user);
+    }
+
+    /**
+     * Attaches the server's send handler to its guild. Called once the server has been registered, so a server that lost the race to be created
+     * never replaces the registered server's handler.
+     */
+    final void attach() {
+        this.guild.getAudioManager().setSendingHandler(this.handler);
 
         if (this.manager.getRecent(this.guild.getIdLong()) != Long.MAX_VALUE) {
             this.manager.removeRecent(this.guild.getIdLong());
@@ -80,34 +135,90 @@ public class MusicServer extends AudioEventAdapter {
     }
 
     /**
-     * Adds a skip to the currently playing song.
-     * @param string The ID of the user skipping the song.
+     * Releases the players of a server that was never registered because another server was created for the guild first.
+     */
+    final void discard() {
+        this.player.removeListener(this);
+        this.standby.removeListener(this);
+        this.player.destroy();
+        this.standby.destroy();
+    }
+
+    /**
+     * Runs a task on this server's mailbox, after every task submitted before it and before every task submitted after it. All changes to the
+     * server's state should be made this way.
+     * @param task The task to run.
      */
-    public final void addSkip(final String string) {
-        this.skips.add(string);
+    public final void execute(final Runnable task) {
+        this.mailbox.execute(task);
     }
 
     /**
      * Gets whether it is safe for the bot to shutdown. <p>
      * This checks whether the bot is in a server with someone sharing a mutual guild. A Discord bug will result in the mutual no longer being able to hear the bot until they rejoin the voice channel.
+     * The check is made against the {@link MusicManager}'s occupancy index rather than by walking every server's channel.
      * @return Whether it is safe.
      */
     public final boolean canShutdown() {
-        boolean clash = false;
+        return this.manager.getListenersElsewhere(this).isEmpty();
+    }
 
-        for (final MusicServer server : this.manager.getServers()) {
-            if ((server == this) || (server.getPlayer().getPlayingTrack() == null)) {
-                continue;
+    /**
+     * Called when another server has shut down while this one lingers. Users who were in that server's channel no longer stop this server
+     * leaving unless they are listening somewhere else; once none of the users that kept it from leaving remain, it leaves if it still can.
+     * @param departed The users who were in the other server's channel.
+     */
+    final void release(final Collection<Long> departed) {
+        if (this.stopping || !this.isLeaveQueued() || this.blockers.isEmpty()) {
+            return;
+        }
+
+        for (final Long user : departed) {
+            if (this.blockers.contains(user) && !this.manager.isListeningElsewhere(user, this)) {
+                this.blockers.remove(user);
             }
+        }
 
-            for (final Member member : server.channel.getMembers().stream().filter(m -> !m.getUser().isBot()).collect(Collectors.toList())) {
-                if (this.guild.getMember(member.getUser()) != null) {
-                    clash = true;
-                }
+        if (this.blockers.isEmpty()) {
+            final Set<Long> remaining = this.manager.getListenersElsewhere(this);
+
+            if (remaining.isEmpty()) {
+                this.shutdownNow(true);
+            } else {
+                this.blockers.addAll(remaining);
             }
         }
+    }
+
+    /**
+     * Checks that the server is still healthy, recovering it if not: it shuts down if there is nothing to play, returns to its channel if it was
+     * moved, and restarts the queue if nothing is playing.
+     */
+    private void checkHealth() {
+        this.watchdog = null;
+
+        if (this.stopping) {
+            return;
+        }
+
+        // A lingering server already has its leave queued
+        if (!this.isLeaveQueued()) {
+            this.prompt();
+        }
+
+        if (this.stopping) {
+            return;
+        }
 
-        return !clash;
+        if (this.guild.getAudioManager().isConnected() && (this.channel != null) && (this.guild.getAudioManager().getConnectedChannel() != this.channel)) {
+            Hilda.getLogger().info("Moved from " + this.guild.getAudioManager().getConnectedChannel().getName() + " to expected channel");
+            this.guild.getAudioManager().openAudioConnection(this.channel);
+        }
+
+        if (!this.queue.isEmpty() && !this.isLeaveQueued() && (this.player.getPlayingTrack() == null)) {
+            Hilda.getLogger().info("The queue was stuck in " + this.guild.getName() + ' ' + this.guild.getId() + "; restarting it...");
+            this.play(this.queue.peek());
+        }
     }
 
     /**
@@ -118,6 +229,14 @@ public class MusicServer extends AudioEventAdapter {
         return this.channel;
     }
 
+    /**
+     * Gets the current music settings of this server's guild.
+     * @return The settings.
+     */
+    public final MusicGuildSettings getSettings() {
+        return this.manager.getSettings(this.guild);
+    }
+
     /**
      * Gets the configuration for this server.
      * @return This server's configuration.
@@ -138,13 +257,7 @@ public class MusicServer extends AudioEventAdapter {
             duration += current.getDuration() - current.getPosition();
         }
 
-        synchronized (this.queue) {
-            for (final QueueItem item : this.queue) {
-                duration += item.getTrack().getDuration();
-            }
-        }
-
-        return duration;
+        return duration + this.queue.getDuration();
     }
 
     /**
@@ -155,6 +268,14 @@ public class MusicServer extends AudioEventAdapter {
         return this.guild;
     }
 
+    /**
+     * Gets the manager the server belongs to.
+     * @return The manager.
+     */
+    public final MusicManager getManager() {
+        return this.manager;
+    }
+
     /**
      * Gets the audio player used by the server.
      * @return The audio player.
@@ -163,6 +284,40 @@ public class MusicServer extends AudioEventAdapter {
         return this.player;
     }
 
+    /**
+     * Gets how many seconds before a track ends the next track is prefetched.
+     * @return The configured lead, or {@link #PREFETCH_LEAD} if none is configured. Zero disables prefetching.
+     */
+    public final int getPrefetchLead() {
+        return this.getSettings().getPrefetchLead();
+    }
+
+    /**
+     * Gets why the player is currently decoding and re-encoding audio rather than passing it through.
+     * @return The reason or {@code null} if the player is passing audio through.
+     */
+    public final TranscodeReason getTranscodeReason() {
+        return this.transcoding;
+    }
+
+    /**
+     * Gets the volume set for this server, before any normalisation.
+     * @return The volume as a percentage.
+     */
+    public final int getVolume() {
+        return this.getSettings().getVolume();
+    }
+
+    /**
+     * Gets the volume a track should be played at: the server's volume, lowered for tracks measured as loud if normalisation is enabled.
+     * @param identifier The identifier of the track.
+     * @return The volume as a percentage.
+     */
+    private int getVolume(final String identifier) {
+        final int gain = this.isNormalising() ? this.manager.getGain(identifier) : 100;
+        return Math.max(1, Math.round((this.getVolume() * gain) / 100f));
+    }
+
     /**
      * Gets the QueueItem the server is currently playing.
      * @return The queue item.
@@ -172,13 +327,54 @@ public class MusicServer extends AudioEventAdapter {
     }
 
     /**
-     * Gets a copy of the queue the server contains.
-     * @return An unmodifiable list of the queue.
+     * Gets the queue the server contains. This is an immutable snapshot and does not copy the queue.
+     * @return An unmodifiable list of the queue as it was when called.
      */
     public final List<QueueItem> getQueue() {
-        synchronized (this.queue) {
-            return Util.unmodifiableList(this.queue);
-        }
+        return this.queue.snapshot();
+    }
+
+    /**
+     * Gets part of the queue.
+     * @param from The zero-based position of the first item, inclusive.
+     * @param to The zero-based position of the last item, exclusive.
+     * @return A list of the items in range. Positions outside the queue are ignored.
+     */
+    public final List<QueueItem> getQueue(final int from, final int to) {
+        return this.queue.slice(from, to);
+    }
+
+    /**
+     * Gets the item at a position in the queue.
+     * @param index The zero-based position.
+     * @return The item or {@code null} if the position is outside the queue.
+     */
+    public final QueueItem getQueued(final int index) {
+        return this.queue.get(index);
+    }
+
+    /**
+     * Gets the maximum number of items this server's queue may hold.
+     * @return The configured limit, or {@link MusicManager#QUEUE_LIMIT} if none is configured.
+     */
+    public final int getQueueLimit() {
+        return this.getSettings().getQueueLimit();
+    }
+
+    /**
+     * Gets the approximate heap used by the items in the queue, whether encoded or resolved for playback.
+     * @return The size in bytes.
+     */
+    public final long getQueueFootprint() {
+        return this.queue.getFootprint();
+    }
+
+    /**
+     * Gets the number of items in the queue without copying it.
+     * @return The size of the queue.
+     */
+    public final int getQueueSize() {
+        return this.queue.size();
     }
 
     /**
@@ -207,28 +403,42 @@ public class MusicServer extends AudioEventAdapter {
             return null;
         }
 
-        return Util.strip(MusicManager.getFriendly(this.now.getTrack()));
+        return Util.strip(MusicManager.getFriendly(this.now));
     }
 
     /**
-     * Gets the number of users in the server's channel that are not bots and are not defeaned.
+     * Gets the silence measured between the end of one track and the start of the next at the most recent transition.
+     * @return The gap in milliseconds or {@code -1} if no transition has been measured.
+     */
+    public final long getTransitionGap() {
+        return this.handler.getGap();
+    }
+
+    /**
+     * Gets the number of users in the server's channel that are not bots and are not defeaned. This is kept up to date from voice events rather
+     * than counted on each call.
      * @return The number of users in the server's channel that are not bots and are not defeaned.
      */
     public final int getUsers() {
-        if ((this.channel == null) || (this.channel.getMembers() == null)) {
-            return 0;
-        }
-
-        return (int) this.channel.getMembers().stream().filter(m -> !m.getUser().isBot() && !m.getVoiceState().isDeafened()).count();
+        return this.listeners.size();
     }
 
     /**
      * Checks whether a user ID has sought that the current song be skipped.
-     * @param string The user ID to be tested.
+     * @param user The user ID to be tested.
      * @return Whether the user ID has sought that the current song be skipped.
      */
-    public final boolean hasSkipped(final String string) {
-        return this.skips.contains(string);
+    public final boolean hasSkipped(final long user) {
+        return this.skips.contains(user);
+    }
+
+    /**
+     * Checks whether a member counts towards the listeners of the server's channel.
+     * @param member The member to test.
+     * @return Whether the member is not a bot and is not deafened.
+     */
+    private static boolean isListener(final Member member) {
+        return !member.getUser().isBot() && !member.getVoiceState().isDeafened();
     }
 
     /**
@@ -249,15 +459,7 @@ public class MusicServer extends AudioEventAdapter {
             return true;
         }
 
-        synchronized (this.queue) {
-            for (final QueueItem aQueue : this.queue) {
-                if (track.getIdentifier().equalsIgnoreCase(aQueue.getTrack().getIdentifier())) {
-                    return true;
-                }
-            }
-        }
-
-        return false;
+        return this.queue.contains(track.getIdentifier());
     }
 
     /**
@@ -265,7 +467,23 @@ public class MusicServer extends AudioEventAdapter {
      * @return Whether the queue is full.
      */
     public final boolean isQueueFull() {
-        return this.queue.size() >= MusicManager.QUEUE_LIMIT;
+        return this.queue.size() >= this.getQueueLimit();
+    }
+
+    /**
+     * Gets whether the server is lingering with its players released.
+     * @return Whether the server is hibernating.
+     */
+    public final boolean isHibernating() {
+        return this.hibernating;
+    }
+
+    /**
+     * Gets whether loud tracks are turned down automatically.
+     * @return The configured setting, or {@code true} if none is configured.
+     */
+    public final boolean isNormalising() {
+        return this.getSettings().isNormalising();
     }
 
     /**
@@ -276,8 +494,17 @@ public class MusicServer extends AudioEventAdapter {
         return this.stopping;
     }
 
-    @EventHandler
-    public void onEvent(final Event e) {
+    /**
+     * Handles a voice event in this server's guild, as passed on by the {@link MusicEventDispatcher}.
+     * @param e The event.
+     */
+    final void onVoiceEvent(final GenericGuildVoiceEvent e) {
+        this.updateListeners(e);
+
+        if (e.getMember() == this.getSelf()) {
+            this.watch();
+        }
+
         if (this.stopping || this.isLeaveQueued()) {
             return;
         }
@@ -293,10 +520,6 @@ public class MusicServer extends AudioEventAdapter {
                     this.prompt();
                 }
 
-                if (this.hasSkipped(event.getMember().getUser().getId())) {
-                    this.removeSkip(event.getMember().getUser().getId());
-                }
-
                 if (this.shouldSkip()) {
                     Hilda.getLogger().fine("Skipping because a user left the channel");
                     this.sendMessage("Skipping because user leaving changed skip count...");
@@ -310,6 +533,7 @@ public class MusicServer extends AudioEventAdapter {
 
             if (event.getMember() == this.getSelf()) {
                 this.channel = event.getChannelJoined();
+                this.recountListeners();
 
                 if (this.getUsers() == 0) {
                     this.shutdown();
@@ -322,10 +546,6 @@ public class MusicServer extends AudioEventAdapter {
                     this.shutdown();
                 }
 
-                if (this.hasSkipped(event.getMember().getUser().getId())) {
-                    this.removeSkip(event.getMember().getUser().getId());
-                }
-
                 if (this.shouldSkip()) {
                     Hilda.getLogger().fine("Skipping because a user moved from the channel");
                     this.sendMessage("Skipping because user leaving changed skip count...");
@@ -359,10 +579,6 @@ public class MusicServer extends AudioEventAdapter {
             final GuildVoiceDeafenEvent event = (GuildVoiceDeafenEvent) e;
 
             if (event.isDeafened() && (event.getMember().getVoiceState().getChannel() == this.channel)) {
-                if (this.hasSkipped(event.getMember().getUser().getId())) {
-                    this.removeSkip(event.getMember().getUser().getId());
-                }
-
                 if (this.shouldSkip()) {
                     Hilda.getLogger().fine("Skipping because a user became deafened");
                     this.sendMessage("Skipping because user deafening changed skip count...");
@@ -374,7 +590,30 @@ public class MusicServer extends AudioEventAdapter {
 
     @Override
     public final void onTrackEnd(final AudioPlayer player, final AudioTrack track, final AudioTrackEndReason endReason) {
+        if (player != this.player) {
+            return;
+        }
+
+        // The recording belongs to this track, so it is settled now rather than once the mailbox gets to the event. This runs on the audio
+        // thread, so storing and measuring the recording are left to the frame cache's writer
+        if (endReason == AudioTrackEndReason.FINISHED) {
+            final String identifier = track.getIdentifier();
+            this.handler.commit(() -> this.manager.analyse(identifier));
+        } else {
+            this.handler.record(null);
+        }
+
+        this.execute(() -> this.ended(track, endReason));
+    }
+
+    /**
+     * Handles a track ending on the playing player.
+     * @param track The track that ended.
+     * @param endReason Why it ended.
+     */
+    private void ended(final AudioTrack track, final AudioTrackEndReason endReason) {
         Hilda.getLogger().fine("Track ended " + track.getIdentifier());
+        this.watch();
 
         if (this.stopping) {
             Hilda.getLogger().fine("Stopping, so giving up...");
@@ -383,6 +622,7 @@ public class MusicServer extends AudioEventAdapter {
 
         if (this.queue.isEmpty()) {
             Hilda.getLogger().fine("Queue was empty...");
+            this.now = null;
 
             final StringBuilder sb = new StringBuilder();
             sb.append("Queue concluded.");
@@ -397,21 +637,31 @@ public class MusicServer extends AudioEventAdapter {
             return;
         }
 
-        if (this.isQueued(track)) {
-            Hilda.getLogger().fine("Track was still in queue; deleting.");
-            synchronized (this.queue) {
-                this.queue.removeIf(item -> item.getTrack().equals(track));
-            }
-        }
+        this.queue.removeTrack(track);
 
         if (endReason.mayStartNext || (endReason == AudioTrackEndReason.STOPPED)) {
             Hilda.getLogger().fine("Starting next song...");
-            this.play(this.queue.get(0));
+            this.handler.markTransition();
+            this.play(this.queue.peek());
         }
     }
 
     @Override
     public final void onTrackException(final AudioPlayer player, final AudioTrack track, final FriendlyException exception) {
+        if (player != this.player) {
+            Hilda.getLogger().fine("Prefetching " + track.getIdentifier() + " failed; it will be loaded again when reached");
+            return;
+        }
+
+        this.execute(() -> this.failed(track, exception));
+    }
+
+    /**
+     * Handles a track on the playing player failing.
+     * @param track The track that failed.
+     * @param exception The failure.
+     */
+    private void failed(final AudioTrack track, final FriendlyException exception) {
         this.setGame(null);
 
         if (exception.getCause() instanceof UnsatisfiedLinkError) {
@@ -424,11 +674,21 @@ public class MusicServer extends AudioEventAdapter {
             this.sendMessage("Track exception (" + exception.getMessage() + "); skipping.");
         }
 
-        this.play(this.queue.get(0));
+        this.play(this.queue.peek());
     }
 
     @Override
     public final void onTrackStart(final AudioPlayer player, final AudioTrack track) {
+        if (player == this.player) {
+            this.execute(() -> this.started(track));
+        }
+    }
+
+    /**
+     * Handles a track starting on the playing player, either normally or because a prefetched track was switched to.
+     * @param track The track that started.
+     */
+    private void started(final AudioTrack track) {
         Hilda.getLogger().fine("Track began " + track.getIdentifier());
 
         this.skips.clear();
@@ -439,16 +699,83 @@ public class MusicServer extends AudioEventAdapter {
         }
 
         // Ensure track gone from queue
-        this.queue.removeIf(item -> item.getTrack().equals(track));
+        this.queue.removeTrack(track);
 
+        this.applyVolume();
         this.prompt();
+        this.schedulePrefetch();
     }
 
     @Override
     public final void onTrackStuck(final AudioPlayer player, final AudioTrack track, final long thresholdMs) {
+        if (player == this.player) {
+            this.execute(() -> this.stuck(track));
+        }
+    }
+
+    /**
+     * Handles a track on the playing player getting stuck.
+     * @param track The track that got stuck.
+     */
+    private void stuck(final AudioTrack track) {
         Hilda.getLogger().warning("Track " + track.getIdentifier() + " got stuck in " + this.guild.getName() + "; skipping...");
         this.sendMessage("Track stuck; skipping.");
-        this.play(this.queue.get(0));
+        this.play(this.queue.peek());
+    }
+
+    /**
+     * Moves a queued item to a new position.
+     * @param from The current zero-based position of the item.
+     * @param to The zero-based position the item should occupy afterwards.
+     * @return The moved item or {@code null} if either position is outside the queue.
+     */
+    public final QueueItem move(final int from, final int to) {
+        final QueueItem item = this.queue.move(from, to);
+        this.resolveAhead();
+        return item;
+    }
+
+    /**
+     * Gets the track to play for a resolved item. Live streams are shared through the broadcast hub, and recorded frames are preferred over the
+     * remote source.
+     * @param item The item to play.
+     * @param clone Whether the item's own track should be left unplayed.
+     * @return The track to play.
+     */
+    private AudioTrack open(final QueueItem item, final boolean clone) {
+        if (item.getTrack().getInfo().isStream) {
+            return this.manager.getBroadcastHub().open(item.getTrack());
+        }
+
+        final AudioTrack cached = this.manager.getFrameCache().open(item.getIdentifier(), item.getTrack().getInfo());
+
+        if (cached != null) {
+            Hilda.getLogger().fine("Playing " + item.getIdentifier() + " from recorded frames");
+            this.manager.analyse(item.getIdentifier());
+            return cached;
+        }
+
+        return clone ? item.getTrack().makeClone() : item.getTrack();
+    }
+
+    /**
+     * Applies the volume for the playing track to the player and records whether that forces it to transcode.
+     */
+    private void applyVolume() {
+        final AudioTrack playing = this.player.getPlayingTrack();
+        final int volume = (playing == null) ? this.getVolume() : this.getVolume(playing.getIdentifier());
+
+        this.player.setVolume(volume);
+
+        if (playing == null) {
+            this.transcoding = null;
+        } else if (this.getVolume() != 100) {
+            this.transcoding = TranscodeReason.VOLUME;
+        } else if (volume != 100) {
+            this.transcoding = TranscodeReason.NORMALISATION;
+        } else {
+            this.transcoding = null;
+        }
     }
 
     /**
@@ -459,24 +786,94 @@ public class MusicServer extends AudioEventAdapter {
         Hilda.getLogger().info("Playing a song in " + this.guild.getName() + ' ' + this.guild.getId() + ' ' + item);
 
         if (this.task != null) {
-            this.task.cancel(false);
+            this.task.cancel();
             this.task = null;
+            this.blockers.clear();
+            this.manager.setLingering(this, false);
         }
 
         this.now = item;
+        this.watch();
 
-        this.player.playTrack((item == null) ? null : item.getTrack());
+        if (item != null) {
+            this.wake();
+        }
+
+        if ((item != null) && !this.queue.resolve(item)) {
+            this.queue.remove(item);
+            this.sendMessage("I couldn't load " + MusicManager.getFriendly(item) + "; skipping.");
+            this.play(this.queue.peek());
+            return;
+        }
+
+        if (this.swap(item)) {
+            Hilda.getLogger().fine("Switched to prefetched track " + item.getIdentifier());
+            this.started(this.player.getPlayingTrack());
+        } else {
+            final AudioTrack track = (item == null) ? null : this.open(item, false);
+
+            // The recorder is in place before the track can provide its first frame
+            this.handler.record(this.recorder(track));
+            this.player.playTrack(track);
+        }
 
         if (item == null) {
             this.prompt();
         } else {
-            this.sendMessage("Now playing " + MusicManager.getFriendly(item.getTrack()) + " as requested by " + this.guild.getMemberById(item.getUserId()).getEffectiveName() + '.');
+            this.sendMessage("Now playing " + MusicManager.getFriendly(item) + " as requested by " + this.guild.getMemberById(item.getUserId()).getEffectiveName() + '.', true);
             this.setGame(this.getSong());
         }
 
-        if ((item != null) && this.isQueued(item.getTrack())) {
+        if (item != null) {
             this.queue.remove(item);
         }
+
+        this.resolveAhead();
+    }
+
+    /**
+     * Starts the next item in the queue on the standby player, paused, so its stream is open and frames are buffered by the time the playing track
+     * ends. If the playing track is further from its end than expected, for example because it stalled, the prefetch is rescheduled instead.
+     */
+    private void prefetch() {
+        this.prefetch = null;
+
+        final AudioTrack playing = this.player.getPlayingTrack();
+
+        if (this.stopping || (playing == null)) {
+            return;
+        }
+
+        if ((playing.getDuration() - playing.getPosition()) > TimeUnit.SECONDS.toMillis(this.getPrefetchLead() + 1L)) {
+            this.schedulePrefetch();
+            return;
+        }
+
+        final QueueItem next = this.queue.peek();
+
+        if ((next == null) || (next == this.now) || (next == this.warmed) || !this.queue.resolve(next)) {
+            return;
+        }
+
+        Hilda.getLogger().fine("Prefetching " + next.getIdentifier() + " in " + this.guild.getName());
+
+        this.standby.setPaused(true);
+        this.standby.setVolume(this.getVolume(next.getIdentifier()));
+        this.standby.playTrack(this.open(next, true));
+        this.warmed = next;
+    }
+
+    /**
+     * Counts a play of a track and gets a recorder for it if the frame cache should record it.
+     * @param track The track about to be played.
+     * @return The recorder or {@code null} if the track should not be recorded.
+     */
+    private FrameCache.Recorder recorder(final AudioTrack track) {
+        if ((track == null) || (track instanceof CachedAudioTrack) || track.getInfo().isStream || (track.getPosition() != 0L)) {
+            return null;
+        }
+
+        return this.manager.getFrameCache().record(track.getIdentifier());
     }
 
     /**
@@ -514,13 +911,13 @@ public class MusicServer extends AudioEventAdapter {
     private void queue(final QueueItem queue, final boolean front) {
         Hilda.getLogger().fine("Queueing " + queue);
 
-        if (this.now == null) {
+        if ((this.now == null) || this.hibernating) {
             this.play(queue);
             return;
         }
 
         if (front) {
-            this.queue.add(0, queue);
+            this.queue.addFirst(queue);
         } else {
             this.queue.add(queue);
         }
@@ -529,18 +926,228 @@ public class MusicServer extends AudioEventAdapter {
     }
 
     /**
-     * Queues a bot shutdown.
+     * Adds several items to the end of the queue as one change. Items whose track is already queued or playing, repeated earlier in the batch or
+     * beyond the queue limit are skipped. If no song is currently playing, the first item added will be played.
+     * @param items The items to queue, in order.
+     * @return The items that were accepted.
+     */
+    public final List<QueueItem> queueAll(final List<QueueItem> items) {
+        Hilda.getLogger().fine("Queueing " + items.size() + " items");
+
+        final AudioTrack playing = this.player.getPlayingTrack();
+        final List<QueueItem> candidates = (playing == null) ? items : items.stream().filter(item -> !item.getIdentifier().equals(playing.getIdentifier())).collect(Collectors.toList());
+        final List<QueueItem> accepted = this.queue.addAll(candidates, this.getQueueLimit());
+
+        if (accepted.isEmpty()) {
+            return accepted;
+        }
+
+        if ((this.now == null) || this.hibernating) {
+            this.play(accepted.get(0));
+            this.manager.addQueued(accepted.size() - 1);
+        } else {
+            this.manager.addQueued(accepted.size());
+            this.resolveAhead();
+        }
+
+        return accepted;
+    }
+
+    /**
+     * Queues a bot shutdown. If nothing is playing the players are released while the server waits.
      */
     private void queueShutdown() {
-        this.task = this.manager.getHilda().getExecutor().schedule(new MusicLeaveTask(this), 5L, TimeUnit.MINUTES);
+        if (this.task != null) {
+            this.task.cancel();
+        }
+
+        this.task = this.manager.getTimers().schedule(new MusicLeaveTask(this), 5L, TimeUnit.MINUTES);
+        this.manager.setLingering(this, true);
+
+        if (this.player.getPlayingTrack() == null) {
+            this.hibernate();
+        }
+    }
+
+    /**
+     * Arms the watchdog to check the server's health shortly, replacing any check already armed. Called whenever playback or the bot's voice
+     * state changes.
+     */
+    private void watch() {
+        if (this.watchdog != null) {
+            this.watchdog.cancel();
+        }
+
+        this.watchdog = this.stopping ? null : this.manager.getTimers().schedule(() -> this.execute(this::checkHealth), MusicServer.WATCHDOG_DEADLINE, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Releases the players and detaches the send handler while the server lingers, keeping the voice connection. The next {@link #play(QueueItem)}
+     * wakes the server with fresh players.
+     */
+    private void hibernate() {
+        if (this.hibernating || this.stopping) {
+            return;
+        }
+
+        Hilda.getLogger().fine("Hibernating " + this.guild.getName() + ' ' + this.guild.getId());
+
+        if (this.prefetch != null) {
+            this.prefetch.cancel();
+            this.prefetch = null;
+        }
+
+        this.warmed = null;
+        this.hibernating = true;
+        this.guild.getAudioManager().setSendingHandler(null);
+        this.handler.record(null);
+        this.player.removeListener(this);
+        this.standby.removeListener(this);
+        this.player.destroy();
+        this.standby.destroy();
+    }
+
+    /**
+     * Creates fresh players for a hibernating server and reattaches its send handler.
+     */
+    private void wake() {
+        if (!this.hibernating) {
+            return;
+        }
+
+        Hilda.getLogger().fine("Waking " + this.guild.getName() + ' ' + this.guild.getId());
+
+        this.player = this.manager.getAudioPlayerManager().createPlayer();
+        this.player.addListener(this);
+        this.standby = this.manager.getAudioPlayerManager().createPlayer();
+        this.standby.addListener(this);
+        this.handler.setPlayer(this.player);
+        this.guild.getAudioManager().setSendingHandler(this.handler);
+        this.hibernating = false;
+    }
+
+    /**
+     * Schedules the next track to be prefetched shortly before the playing track ends. Streams and servers with prefetching disabled are skipped.
+     */
+    private void schedulePrefetch() {
+        if (this.prefetch != null) {
+            this.prefetch.cancel();
+            this.prefetch = null;
+        }
+
+        final AudioTrack playing = this.player.getPlayingTrack();
+        final int lead = this.getPrefetchLead();
+
+        if (this.stopping || (playing == null) || playing.getInfo().isStream || (lead == 0)) {
+            return;
+        }
+
+        final long delay = Math.max(0L, playing.getDuration() - playing.getPosition() - TimeUnit.SECONDS.toMillis(lead));
+        this.prefetch = this.manager.getTimers().schedule(() -> this.execute(this::prefetch), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts resolving any placeholders at the head of the queue, so they are playable by the time they are reached.
+     */
+    private void resolveAhead() {
+        for (final QueueItem item : this.queue.slice(0, MusicServer.RESOLVE_AHEAD)) {
+            this.queue.resolve(item);
+        }
     }
 
     /**
-     * Removes a user ID from the skip list.
-     * @param string The user ID to remove.
+     * Rebuilds the listeners from the members of the server's channel. Only needed when the channel changes; otherwise listeners are updated from
+     * voice events.
      */
-    private void removeSkip(final String string) {
-        this.skips.remove(string);
+    private void recountListeners() {
+        this.listeners.clear();
+        this.vacateAll();
+
+        if (this.channel == null) {
+            return;
+        }
+
+        for (final Member member : this.channel.getMembers()) {
+            if (!member.getUser().isBot()) {
+                this.occupy(member.getUser().getIdLong());
+            }
+
+            if (MusicServer.isListener(member)) {
+                this.listeners.add(member.getUser().getIdLong());
+            }
+        }
+    }
+
+    /**
+     * Records a user as being in the server's channel, in this server and in the manager's occupancy index.
+     * @param user The user ID.
+     */
+    private void occupy(final long user) {
+        if (this.occupants.add(user)) {
+            this.manager.occupy(user, this);
+        }
+    }
+
+    /**
+     * Records a user as no longer being in the server's channel.
+     * @param user The user ID.
+     */
+    private void vacate(final long user) {
+        if (this.occupants.remove(user)) {
+            this.manager.vacate(user, this);
+        }
+    }
+
+    /**
+     * Removes every user in the server's channel from the manager's occupancy index.
+     */
+    private void vacateAll() {
+        for (final Long user : this.occupants) {
+            this.vacate(user);
+        }
+    }
+
+    /**
+     * Updates the listeners and skip votes for a member joining, leaving, moving or changing deafened state. Members who stop listening lose
+     * their skip vote.
+     * @param e The voice event.
+     */
+    private void updateListeners(final GenericGuildVoiceEvent e) {
+        final VoiceChannel channel = this.channel;
+        final long user = e.getMember().getUser().getIdLong();
+
+        if (channel == null) {
+            return;
+        }
+
+        if (e instanceof GuildVoiceUpdateEvent) {
+            final GuildVoiceUpdateEvent event = (GuildVoiceUpdateEvent) e;
+
+            if (event.getChannelLeft() == channel) {
+                this.listeners.remove(user);
+                this.skips.remove(user);
+                this.vacate(user);
+            }
+
+            if (event.getChannelJoined() == channel) {
+                if (!e.getMember().getUser().isBot()) {
+                    this.occupy(user);
+                }
+
+                if (MusicServer.isListener(e.getMember())) {
+                    this.listeners.add(user);
+                }
+            }
+        }
+
+        if ((e instanceof GuildVoiceDeafenEvent) && (e.getMember().getVoiceState().getChannel() == channel)) {
+            if (((GuildVoiceDeafenEvent) e).isDeafened()) {
+                this.listeners.remove(user);
+                this.skips.remove(user);
+            } else if (MusicServer.isListener(e.getMember())) {
+                this.listeners.add(user);
+            }
+        }
     }
 
     /**
@@ -549,12 +1156,83 @@ public class MusicServer extends AudioEventAdapter {
      * @param message The message to send
      */
     public final void sendMessage(final String message) {
+        this.sendMessage(message, false);
+    }
+
+    /**
+     * Attempts to send a message to the channel chosen by {@link #sendMessage(String)}.
+     * @param message The message to send.
+     * @param announcement Whether the message announces the playing track, superseding any earlier announcement that has not been sent yet.
+     */
+    private void sendMessage(final String message, final boolean announcement) {
+        final TextChannel channel = this.getOutput();
+
+        if (channel == null) {
+            return;
+        }
+
+        if (announcement) {
+            this.manager.getOutbound().announce(channel, Util.sanitise(message));
+        } else {
+            this.manager.getOutbound().send(channel, Util.sanitise(message));
+        }
+    }
+
+    /**
+     * Sends a message straight away rather than through the outbound buffer, for messages that must go out before the plugin stops.
+     * @param message The message to send.
+     */
+    public final void sendMessageNow(final String message) {
+        final TextChannel channel = this.getOutput();
+
+        if (channel != null) {
+            channel.sendMessage(Util.sanitise(message)).queue();
+        }
+    }
+
+    /**
+     * Gets the channel messages are sent to, choosing it if it has not been chosen yet. If the bot cannot talk in any channel the server shuts
+     * down.
+     * @return The channel, or {@code null} if there is none.
+     */
+    private TextChannel getOutput() {
+        TextChannel channel = this.output;
+
+        if (channel == null) {
+            channel = this.resolveOutput();
+
+            if (channel == null) {
+                Hilda.getLogger().severe("Couldn't find any channels to talk to in " + this.guild.getName() + ' ' + this.guild.getId() + "; leaving...");
+                this.shutdown();
+                return null;
+            }
+
+            Hilda.getLogger().fine("Decided to send messages to " + channel.getName() + "...");
+            this.output = channel;
+        }
+
+        return channel;
+    }
+
+    /**
+     * Forgets the channel messages are sent to, so that it is chosen again before the next message. Called when the configured output channel
+     * changes, or a channel or permission change may have affected which channels the bot can talk in.
+     */
+    public final void invalidateOutput() {
+        this.output = null;
+    }
+
+    /**
+     * Chooses the channel messages are sent to, in the order described by {@link #sendMessage(String)}.
+     * @return The channel, or {@code null} if the bot cannot talk in any channel.
+     */
+    private TextChannel resolveOutput() {
         TextChannel channel = null;
 
-        final JsonElement output = this.config.get().get("output");
+        final String output = this.getSettings().getOutput();
 
         if (output != null) {
-            channel = this.guild.getTextChannelById(output.getAsString());
+            channel = this.guild.getTextChannelById(output);
         }
 
         if (channel == null) {
@@ -569,24 +1247,15 @@ public class MusicServer extends AudioEventAdapter {
             }
         }
 
-        if (channel == null) {
-            if (this.guild.getDefaultChannel().canTalk()) {
-                channel = this.guild.getDefaultChannel();
-            } else {
-                final Optional<TextChannel> chan = this.guild.getTextChannels().stream().filter(TextChannel::canTalk).findFirst();
+        if ((channel == null) && this.guild.getDefaultChannel().canTalk()) {
+            channel = this.guild.getDefaultChannel();
+        }
 
-                if (chan.isPresent()) {
-                    channel = chan.get();
-                } else {
-                    Hilda.getLogger().severe("Couldn't find any channels to talk to in " + this.guild.getName() + ' ' + this.guild.getId() + "; leaving...");
-                    this.shutdown();
-                    return;
-                }
-            }
+        if (channel == null) {
+            channel = this.guild.getTextChannels().stream().filter(TextChannel::canTalk).findFirst().orElse(null);
         }
 
-        Hilda.getLogger().fine("Sending a message; decided to use " + channel.getName() + "...");
-        channel.sendMessage(Util.sanitise(message)).queue();
+        return channel;
     }
 
     /**
@@ -622,6 +1291,16 @@ public class MusicServer extends AudioEventAdapter {
         }
 
         this.channel = channel;
+        this.recountListeners();
+    }
+
+    /**
+     * Sets the volume for this server, saving it to the guild's settings, and applies it to the playing track.
+     * @param volume The volume as a percentage.
+     */
+    public final void setVolume(final int volume) {
+        this.manager.updateSettings(this.guild, settings -> settings.withVolume(volume));
+        this.applyVolume();
     }
 
     /**
@@ -649,34 +1328,63 @@ public class MusicServer extends AudioEventAdapter {
         this.lastplaying = set;
     }
 
-    public final void setLeave(final ScheduledFuture<?> task) {
-        this.task = task;
-    }
-
     /**
      * Checks whether the song should be skipped.
      * @return Whether the song should be skipped.
      */
     public final boolean shouldSkip() {
-        return !this.isLeaveQueued() && this.skips.size() >= (int) Math.ceil((double) this.getUsers() / 2);
+        return !this.isLeaveQueued() && (this.skips.size() >= (int) Math.ceil((double) this.getUsers() / 2));
+    }
+
+    /**
+     * Switches playback to the standby player if it holds the prefetched track for an item. A prefetched track for any other item is discarded.
+     * @param item The item about to be played.
+     * @return Whether the item is now playing.
+     */
+    private boolean swap(final QueueItem item) {
+        final QueueItem warmed = this.warmed;
+        this.warmed = null;
+
+        if (warmed == null) {
+            return false;
+        }
+
+        if ((warmed != item) || (this.standby.getPlayingTrack() == null)) {
+            this.standby.stopTrack();
+            return false;
+        }
+
+        final AudioPlayer previous = this.player;
+
+        this.player = this.standby;
+        this.standby = previous;
+        this.handler.record(this.recorder(this.player.getPlayingTrack()));
+        this.handler.setPlayer(this.player);
+        this.player.setPaused(false);
+        previous.stopTrack();
+
+        return true;
     }
 
     /**
      * Shuffles the queue.
      */
     public final void shuffle() {
-        synchronized (this.queue) {
-            Collections.shuffle(this.queue);
-        }
+        this.queue.shuffle();
+        this.resolveAhead();
     }
 
     /**
      * Will shut the bot down immediately (and leave the voice channel) if possible, or queue a shutdown.
      */
     public final void shutdown() {
-        if (this.canShutdown()) {
+        final Set<Long> found = this.manager.getListenersElsewhere(this);
+
+        if (found.isEmpty()) {
             this.shutdownNow(true);
         } else {
+            this.blockers.clear();
+            this.blockers.addAll(found);
             this.queueShutdown();
         }
     }
@@ -692,9 +1400,23 @@ public class MusicServer extends AudioEventAdapter {
         Hilda.getLogger().info("Shutting down " + this.guild.getName() + ' ' + this.guild.getId() + "...");
 
         this.stopping = true;
-        this.manager.getHilda().getBot().removeEventListener(this);
         this.guild.getAudioManager().setSendingHandler(null);
+
+        if (this.prefetch != null) {
+            this.prefetch.cancel();
+            this.prefetch = null;
+        }
+
+        if (this.watchdog != null) {
+            this.watchdog.cancel();
+            this.watchdog = null;
+        }
+
+        this.warmed = null;
+
+        this.handler.record(null);
         this.player.destroy();
+        this.standby.destroy();
         this.queue.clear();
         this.channel = null;
 
@@ -705,15 +1427,22 @@ public class MusicServer extends AudioEventAdapter {
         }
 
         this.manager.addRecent(this.guild.getIdLong());
+        this.manager.setLingering(this, false);
         this.manager.removeServer(this);
+        final List<Long> departed = new ArrayList<>(this.occupants);
+        this.vacateAll();
 
-        for (final MusicServer server : this.manager.getServers()) {
-            if (server == this) {
-                continue;
-            }
+        if (departed.isEmpty()) {
+            return;
+        }
 
-            if (server.isLeaveQueued()) {
-                server.shutdown();
+        // Only lingering servers whose guild shares one of the departed users can have been kept waiting by this one
+        for (final MusicServer server : this.manager.getLingering()) {
+            for (final Long user : departed) {
+                if (server.getGuild().getMemberById(user) != null) {
+                    server.execute(() -> server.release(departed));
+                    break;
+                }
             }
         }
     }
@@ -726,4 +1455,13 @@ public class MusicServer extends AudioEventAdapter {
         this.queue.remove(item);
     }
 
+    /**
+     * Removes a QueueItem from the queue by its position.
+     * @param index The zero-based position the item was read from.
+     * @param item The item expected at that position.
+     */
+    public final void unqueue(final int index, final QueueItem item) {
+        this.queue.remove(index, item);
+    }
+
 }
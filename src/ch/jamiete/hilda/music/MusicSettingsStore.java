@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import ch.jamiete.hilda.Hilda;
+import ch.jamiete.hilda.configuration.Configuration;
+import ch.jamiete.hilda.configuration.ConfigurationManager;
+import ch.jamiete.hilda.plugins.HildaPlugin;
+
+/**
+ * The {@link MusicGuildSettings} of every guild, read from its configuration the first time they are needed. <p>
+ * Changes replace a guild's snapshot atomically and are written back to its configuration in the background, coalescing every change made within
+ * {@value #SAVE_DELAY} seconds into a single save per guild.
+ */
+class MusicSettingsStore {
+    /**
+     * The seconds changes are collected for before they are saved.
+     */
+    private static final long SAVE_DELAY = 5L;
+
+    private final ConfigurationManager configurations;
+    private final HildaPlugin plugin;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentMap<String, MusicGuildSettings> settings = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * @param configurations The manager to read and save configurations through.
+     * @param plugin The plugin the configurations belong to.
+     * @param executor The executor to save on.
+     */
+    MusicSettingsStore(final ConfigurationManager configurations, final HildaPlugin plugin, final ScheduledExecutorService executor) {
+        this.configurations = configurations;
+        this.plugin = plugin;
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the current settings of a guild.
+     * @param guild The guild ID.
+     * @return The settings.
+     */
+    MusicGuildSettings get(final String guild) {
+        final MusicGuildSettings current = this.settings.get(guild);
+
+        if (current != null) {
+            return current;
+        }
+
+        return this.settings.computeIfAbsent(guild, id -> MusicGuildSettings.read(this.configurations.getConfiguration(this.plugin, id).get()));
+    }
+
+    /**
+     * Saves every guild whose settings have changed since they were last saved.
+     */
+    void save() {
+        this.scheduled.set(false);
+
+        for (final String guild : this.dirty) {
+            if (!this.dirty.remove(guild)) {
+                continue;
+            }
+
+            try {
+                final Configuration config = this.configurations.getConfiguration(this.plugin, guild);
+                this.settings.get(guild).write(config.get());
+                config.save();
+            } catch (final Exception e) {
+                Hilda.getLogger().log(Level.WARNING, "Couldn't save music settings for " + guild, e);
+            }
+        }
+    }
+
+    /**
+     * Changes the settings of a guild and schedules them to be saved.
+     * @param guild The guild ID.
+     * @param change The change to apply to the current settings.
+     * @return The new settings.
+     */
+    MusicGuildSettings update(final String guild, final UnaryOperator<MusicGuildSettings> change) {
+        this.get(guild);
+
+        final MusicGuildSettings updated = this.settings.computeIfPresent(guild, (id, current) -> change.apply(current));
+
+        this.dirty.add(guild);
+
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.executor.schedule(this::save, MusicSettingsStore.SAVE_DELAY, TimeUnit.SECONDS);
+        }
+
+        return updated;
+    }
+
+}
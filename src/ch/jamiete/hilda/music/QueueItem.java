@@ -15,20 +15,111 @@
  */
 package ch.jamiete.hilda.music;
 
+import java.io.IOException;
+import java.util.logging.Level;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import ch.jamiete.hilda.Hilda;
 
+/**
+ * An entry in a {@link MusicServer} queue. <p>
+ * An item stores its track only in lavaplayer's encoded form, along with the identifier and duration the queue indexes on. Information for
+ * display is read back from the encoded bytes when it is needed. The {@link AudioTrack} is only decoded once the item is resolved, which the
+ * server does when the item nears the head of the queue or is played, and the encoded form is dropped then. Items whose track could not be
+ * encoded keep the track instead.
+ */
 public class QueueItem {
-    private final AudioTrack track;
-    private final String user;
+    /**
+     * Approximate bytes used by a {@code QueueItem} object itself, excluding the arrays and strings it references.
+     */
+    private static final int OBJECT_BYTES = 48;
 
-    public QueueItem(final AudioTrack track, final String user) {
-        this.track = track;
+    private final AudioPlayerManager manager;
+    private final String identifier;
+    private final long duration;
+    private final long user;
+    private volatile byte[] encoded;
+    private volatile AudioTrack track;
+
+    private QueueItem(final AudioPlayerManager manager, final byte[] encoded, final AudioTrack track, final long user) {
+        this.manager = manager;
+        this.identifier = track.getIdentifier();
+        this.duration = track.getDuration();
         this.user = user;
+        this.encoded = encoded;
+        this.track = (encoded == null) ? track : null;
+    }
+
+    /**
+     * Creates an unresolved item. Only the encoded form of the track is retained, unless the track cannot be encoded.
+     * @param manager The manager whose sources can encode the track.
+     * @param track The track the item represents.
+     * @param user The ID of the user who queued the item.
+     * @return An unresolved item.
+     */
+    public static QueueItem placeholder(final AudioPlayerManager manager, final AudioTrack track, final long user) {
+        return new QueueItem(manager, TrackCodec.encode(manager, track), track, user);
+    }
+
+    /**
+     * Gets the duration of the track.
+     * @return The duration in ms.
+     */
+    public final long getDuration() {
+        return this.duration;
+    }
+
+    /**
+     * Gets the approximate heap used by the item itself, its identifier and its encoded form. A decoded track is not counted: only the few items
+     * resolved near the head of the queue and items that could not be encoded hold one.
+     * @return The size in bytes.
+     */
+    public final int getFootprint() {
+        final byte[] bytes = this.encoded;
+        final int held = (bytes == null) ? 0 : QueueItem.align(16 + bytes.length);
+
+        return QueueItem.OBJECT_BYTES + held + QueueItem.align(40 + this.identifier.length());
+    }
+
+    /**
+     * Gets the identifier of the track.
+     * @return The identifier.
+     */
+    public final String getIdentifier() {
+        return this.identifier;
+    }
+
+    /**
+     * Gets the information describing the track. If the item is unresolved this is read from the encoded form without decoding the track, and
+     * is not retained.
+     * @return The track information.
+     */
+    public final AudioTrackInfo getInfo() {
+        final AudioTrack current = this.track;
+
+        if (current != null) {
+            return current.getInfo();
+        }
+
+        final byte[] bytes = this.encoded;
+
+        if (bytes != null) {
+            try {
+                return TrackCodec.readInfo(bytes);
+            } catch (final IOException ignored) {
+                // Fall through to what the item knows itself
+            }
+        }
+
+        // Resolved in the meantime, or unreadable
+        final AudioTrack resolved = this.track;
+        return (resolved != null) ? resolved.getInfo() : new AudioTrackInfo(null, null, this.duration, this.identifier, false, null);
     }
 
     /**
      * Gets the track held in the item.
-     * @return The track.
+     * @return The track or {@code null} if the item has not been resolved.
      */
     public final AudioTrack getTrack() {
         return this.track;
@@ -38,13 +129,44 @@ public class QueueItem {
      * Gets the ID of the user who queued the item.
      * @return The user ID.
      */
-    public final String getUserId() {
+    public final long getUserId() {
         return this.user;
     }
 
+    /**
+     * Gets whether the item holds a playable track.
+     * @return Whether the item is resolved.
+     */
+    public final boolean isResolved() {
+        return this.track != null;
+    }
+
+    /**
+     * Resolves the item to a playable track by decoding it, then drops the encoded form. Does nothing if the item is already resolved. Items in a
+     * queue should be resolved through {@link MusicQueue#resolve(QueueItem)} so the queue's footprint stays accurate.
+     * @return Whether the item is now resolved.
+     */
+    public final synchronized boolean resolve() {
+        if (this.track == null) {
+            try {
+                this.track = TrackCodec.decode(this.manager, this.encoded);
+                this.encoded = null;
+            } catch (final IOException e) {
+                Hilda.getLogger().log(Level.WARNING, "Couldn't decode " + this, e);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     @Override
     public final String toString() {
-        return "QueueItem{track=" + this.track.getIdentifier() + ", user=" + this.user + '}';
+        return "QueueItem{track=" + this.identifier + ", user=" + this.user + (this.isResolved() ? "" : ", encoded") + '}';
+    }
+
+    private static int align(final int bytes) {
+        return (bytes + 7) & ~7;
     }
 
 }
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * A hashed timer wheel for the music lifecycle timers: startup checks, leave timers, prefetch deadlines and watchdogs. Scheduling and cancelling
+ * are O(1) regardless of how many timers are outstanding, at the cost of firing up to one tick late. <p>
+ * Timers are kept in a ring of buckets, one per tick; a timer further away than one revolution waits in its bucket for the remaining number of
+ * rounds. A single daemon thread advances the wheel and runs expired timers, which should only hand work off to a {@link MusicServer}'s mailbox.
+ * <p>
+ * When the wheel is stopped every outstanding timer runs at once, and timers scheduled afterwards run immediately on the caller, so flushes and
+ * clean-ups scheduled during shutdown are never silently dropped.
+ */
+final class TimerWheel implements Runnable {
+    private final long tick;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long start = System.nanoTime();
+
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long ticks = 0L;
+
+    /**
+     * Creates the wheel and starts its thread.
+     * @param tick The length of a tick.
+     * @param unit The unit of {@code tick}.
+     * @param slots The number of buckets, rounded up to a power of two.
+     */
+    TimerWheel(final long tick, final TimeUnit unit, final int slots) {
+        final int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+
+        this.tick = unit.toNanos(tick);
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new Bucket();
+        }
+
+        this.thread = new Thread(this, "music-timer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Gets the number of timers that have been scheduled and have neither fired nor been cancelled.
+     * @return The number of timers.
+     */
+    int getOutstanding() {
+        return this.outstanding.get();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            final long deadline = this.start + ((this.ticks + 1L) * this.tick);
+            long sleep;
+
+            while (((sleep = deadline - System.nanoTime()) > 0L) && this.running) {
+                LockSupport.parkNanos(this, sleep);
+            }
+
+            if (!this.running) {
+                break;
+            }
+
+            Timeout timeout;
+
+            while ((timeout = this.cancelled.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+
+            for (int i = 0; (i < 100000) && ((timeout = this.pending.poll()) != null); i++) {
+                if (timeout.state.get() != Timeout.PENDING) {
+                    continue;
+                }
+
+                final long due = Math.max((timeout.deadline - this.start) / this.tick, this.ticks);
+
+                timeout.rounds = (due - this.ticks) / this.wheel.length;
+                this.wheel[(int) (due & this.mask)].add(timeout);
+            }
+
+            this.wheel[(int) (this.ticks & this.mask)].expire();
+            this.ticks++;
+        }
+
+        for (final Bucket bucket : this.wheel) {
+            bucket.flush();
+        }
+
+        this.flush();
+    }
+
+    /**
+     * Runs every timer still waiting to be placed on the wheel. Safe to call from any thread, as each timer runs at most once.
+     */
+    private void flush() {
+        Timeout timeout;
+
+        while ((timeout = this.pending.poll()) != null) {
+            timeout.fire();
+        }
+    }
+
+    /**
+     * Schedules a task to run once after a delay. Once the wheel has stopped the task is run immediately instead.
+     * @param task The task, which is run on the wheel's thread, or on the caller's if the wheel has stopped.
+     * @param delay The delay.
+     * @param unit The unit of {@code delay}.
+     * @return A handle that can cancel the timer.
+     */
+    Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        final Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+
+        this.outstanding.incrementAndGet();
+        this.pending.add(timeout);
+
+        if (!this.running) {
+            // The wheel's thread may already have run its final flush
+            this.flush();
+        }
+
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel and its thread, running every outstanding timer first. Waits briefly for the thread to finish.
+     */
+    void stop() {
+        this.running = false;
+        LockSupport.unpark(this.thread);
+
+        try {
+            this.thread.join(TimeUnit.SECONDS.toMillis(5L));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A tick's worth of timers, as a doubly linked list so that cancelled timers can be removed in constant time. Only touched by the wheel's
+     * thread.
+     */
+    private final class Bucket {
+        private Timeout head = null;
+        private Timeout tail = null;
+
+        void add(final Timeout timeout) {
+            timeout.bucket = this;
+
+            if (this.head == null) {
+                this.head = this.tail = timeout;
+            } else {
+                this.tail.next = timeout;
+                timeout.previous = this.tail;
+                this.tail = timeout;
+            }
+        }
+
+        /**
+         * Runs every timer due this revolution and counts down the rest.
+         */
+        void expire() {
+            Timeout timeout = this.head;
+
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+
+                if (timeout.rounds <= 0L) {
+                    this.remove(timeout);
+                    timeout.fire();
+                } else {
+                    timeout.rounds--;
+                }
+
+                timeout = next;
+            }
+        }
+
+        /**
+         * Runs every timer in the bucket, however many rounds it has left.
+         */
+        void flush() {
+            Timeout timeout;
+
+            while ((timeout = this.head) != null) {
+                this.remove(timeout);
+                timeout.fire();
+            }
+        }
+
+        void remove(final Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+
+            if (timeout.previous == null) {
+                this.head = timeout.next;
+            } else {
+                timeout.previous.next = timeout.next;
+            }
+
+            if (timeout.next == null) {
+                this.tail = timeout.previous;
+            } else {
+                timeout.next.previous = timeout.previous;
+            }
+
+            timeout.previous = timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    /**
+     * A scheduled timer.
+     */
+    final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(Timeout.PENDING);
+
+        // Only touched by the wheel's thread
+        private long rounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timer if it has not fired.
+         * @return Whether the timer was cancelled by this call.
+         */
+        boolean cancel() {
+            if (!this.state.compareAndSet(Timeout.PENDING, Timeout.CANCELLED)) {
+                return false;
+            }
+
+            TimerWheel.this.outstanding.decrementAndGet();
+            TimerWheel.this.cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * Runs the timer's task unless it has already run or been cancelled.
+         */
+        private void fire() {
+            if (!this.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                return;
+            }
+
+            TimerWheel.this.outstanding.decrementAndGet();
+
+            try {
+                this.task.run();
+            } catch (final Throwable t) {
+                Hilda.getLogger().log(Level.WARNING, "Music timer failed", t);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, least-recently-used cache of load results, keyed by normalised identifier. Entries expire a fixed time after they are stored. <p>
+ * Results are held in lavaplayer's encoded form so that every hit can be decoded into fresh, playable tracks.
+ */
+class TrackCache {
+    private final int capacity;
+    private final long ttl;
+    private final LinkedHashMap<String, Result> entries;
+
+    private long hits = 0L;
+    private long misses = 0L;
+    private long evictions = 0L;
+    private long expirations = 0L;
+
+    /**
+     * @param capacity The maximum number of results to hold.
+     * @param ttl How long a result stays valid.
+     * @param unit The unit of {@code ttl}.
+     */
+    TrackCache(final int capacity, final long ttl, final TimeUnit unit) {
+        this.capacity = capacity;
+        this.ttl = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Looks up a result, counting a hit or miss.
+     * @param key The normalised identifier.
+     * @return The result or {@code null} if none is cached or it has expired.
+     */
+    synchronized Result get(final String key) {
+        final Result result = this.entries.get(key);
+
+        if ((result != null) && ((System.nanoTime() - result.stored) > this.ttl)) {
+            this.entries.remove(key);
+            this.expirations++;
+            this.misses++;
+            return null;
+        }
+
+        if (result == null) {
+            this.misses++;
+        } else {
+            this.hits++;
+        }
+
+        return result;
+    }
+
+    synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    synchronized long getExpirations() {
+        return this.expirations;
+    }
+
+    synchronized long getHits() {
+        return this.hits;
+    }
+
+    synchronized long getMisses() {
+        return this.misses;
+    }
+
+    synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    /**
+     * Stores a result, evicting expired results and then the least recently used ones to stay within capacity.
+     * @param key The normalised identifier.
+     * @param result The result to store.
+     */
+    synchronized void put(final String key, final Result result) {
+        this.entries.put(key, result);
+
+        final long now = System.nanoTime();
+        final Iterator<Map.Entry<String, Result>> iterator = this.entries.entrySet().iterator();
+
+        while (iterator.hasNext() && (this.entries.size() > this.capacity)) {
+            final Result eldest = iterator.next().getValue();
+
+            if ((now - eldest.stored) > this.ttl) {
+                this.expirations++;
+            } else {
+                this.evictions++;
+            }
+
+            iterator.remove();
+        }
+    }
+
+    /**
+     * A cached load result: either a single track or a playlist of tracks, each encoded.
+     */
+    static final class Result {
+        final byte[][] tracks;
+        final String name;
+        final int selected;
+        final boolean playlist;
+        final boolean search;
+        final long stored = System.nanoTime();
+
+        /**
+         * @param tracks The encoded tracks.
+         * @param name The name of the playlist or {@code null} for a single track.
+         * @param selected The index of the selected track in the playlist, or -1 if none.
+         * @param playlist Whether the result was a playlist.
+         * @param search Whether the playlist was a search result.
+         */
+        Result(final byte[][] tracks, final String name, final int selected, final boolean playlist, final boolean search) {
+            this.tracks = tracks;
+            this.name = name;
+            this.selected = selected;
+            this.playlist = playlist;
+            this.search = search;
+        }
+    }
+
+}
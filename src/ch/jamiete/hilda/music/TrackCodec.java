@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import com.sedmelluq.discord.lavaplayer.track.DecodedTrackHolder;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Converts {@link AudioTrack}s to and from lavaplayer's compact binary encoding.
+ */
+final class TrackCodec {
+    /**
+     * The message flag lavaplayer sets when a track's encoding starts with a version byte.
+     */
+    private static final int VERSIONED = 1;
+
+    private TrackCodec() {
+    }
+
+    /**
+     * Decodes a track.
+     * @param manager The manager that encoded the track.
+     * @param encoded The encoded track.
+     * @return A new, unplayed track.
+     * @throws IOException If the track could not be decoded.
+     */
+    static AudioTrack decode(final AudioPlayerManager manager, final byte[] encoded) throws IOException {
+        final DecodedTrackHolder holder = manager.decodeTrack(new MessageInput(new ByteArrayInputStream(encoded)));
+
+        if ((holder == null) || (holder.decodedTrack == null)) {
+            throw new IOException("Encoded track could not be decoded by any source.");
+        }
+
+        return holder.decodedTrack;
+    }
+
+    /**
+     * Reads the information of an encoded track without decoding the track, so no source manager is involved. This follows the layout
+     * lavaplayer writes every track's encoding with: a message header, a version byte if the message is versioned, then the title, author,
+     * length, identifier, stream flag and, from version 2, the URI.
+     * @param encoded The encoded track.
+     * @return The track information.
+     * @throws IOException If the encoding could not be read.
+     */
+    static AudioTrackInfo readInfo(final byte[] encoded) throws IOException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(encoded));
+        final int flags = input.readInt() >>> 30;
+        final int version = ((flags & TrackCodec.VERSIONED) != 0) ? (input.readByte() & 0xFF) : 1;
+
+        final String title = input.readUTF();
+        final String author = input.readUTF();
+        final long length = input.readLong();
+        final String identifier = input.readUTF();
+        final boolean stream = input.readBoolean();
+        final String uri = ((version >= 2) && input.readBoolean()) ? input.readUTF() : null;
+
+        return new AudioTrackInfo(title, author, length, identifier, stream, uri);
+    }
+
+    /**
+     * Encodes a track.
+     * @param manager The manager whose sources can encode the track.
+     * @param track The track to encode.
+     * @return The encoded track or {@code null} if the track could not be encoded.
+     */
+    static byte[] encode(final AudioPlayerManager manager, final AudioTrack track) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(128);
+
+        try {
+            manager.encodeTrack(new MessageOutput(output), track);
+        } catch (final IOException | RuntimeException e) {
+            Hilda.getLogger().log(Level.FINE, "Couldn't encode track " + track.getIdentifier(), e);
+            return null;
+        }
+
+        return output.toByteArray();
+    }
+
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.BasicAudioPlaylist;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Loads tracks for {@link MusicServer}s, answering repeat requests for the same URL or search from a {@link TrackCache} instead of the remote
+ * source. Recent failures are remembered in a {@link FailureCache} and answered the same way. Concurrent requests for the same URL or search share a single remote load, with each waiting handler receiving its own copy of the
+ * result.
+ */
+public class TrackLoader {
+    /**
+     * The default maximum number of load results cached.
+     */
+    public static final int CACHE_SIZE = 1024;
+    /**
+     * The minutes a load result stays cached.
+     */
+    private static final long CACHE_TTL = 30L;
+    /**
+     * The largest playlist that will be cached.
+     */
+    private static final int CACHE_PLAYLIST_LIMIT = 1000;
+    /**
+     * The maximum number of failed loads remembered.
+     */
+    private static final int FAILURE_CACHE_SIZE = 4096;
+
+    private final AudioPlayerManager manager;
+    private final TrackCache cache;
+    private final FailureCache failures = new FailureCache(TrackLoader.FAILURE_CACHE_SIZE);
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param manager The manager to load tracks with.
+     * @param cacheSize The maximum number of load results to cache, or 0 to disable the cache.
+     */
+    TrackLoader(final AudioPlayerManager manager, final int cacheSize) {
+        this.manager = manager;
+        this.cache = (cacheSize > 0) ? new TrackCache(cacheSize, TrackLoader.CACHE_TTL, TimeUnit.MINUTES) : null;
+    }
+
+    /**
+     * Loads an identifier for a server. Cached results are delivered immediately on the calling thread as fresh copies of the cached tracks. If
+     * the same identifier is already being loaded the handler waits for that load; otherwise it is loaded in order with the server's other loads.
+     * @param server The server the load is for.
+     * @param identifier The URL or search query, including any search prefix.
+     * @param handler The handler to receive the result.
+     */
+    public final void load(final MusicServer server, final String identifier, final AudioLoadResultHandler handler) {
+        final String key = TrackLoader.normalise(identifier);
+
+        while (!this.answer(key, identifier, handler)) {
+            final Flight flight = new Flight(key, handler);
+            final Flight existing = this.flights.putIfAbsent(key, flight);
+
+            if (existing == null) {
+                this.manager.loadItemOrdered(server, identifier, flight);
+                return;
+            }
+
+            if (existing.join(handler)) {
+                Hilda.getLogger().fine("Joined in-flight load of " + identifier);
+                this.coalesced.incrementAndGet();
+                return;
+            }
+
+            // The load finished between lookup and join and its result is now cached, so it is checked again before loading
+        }
+    }
+
+    /**
+     * Answers a load from the cache or the failure cache if either holds its result.
+     * @param key The normalised identifier.
+     * @param identifier The identifier as given.
+     * @param handler The handler to receive the result.
+     * @return Whether the load was answered.
+     */
+    private boolean answer(final String key, final String identifier, final AudioLoadResultHandler handler) {
+        final TrackCache.Result cached = (this.cache == null) ? null : this.cache.get(key);
+
+        if ((cached != null) && this.deliver(cached, handler)) {
+            Hilda.getLogger().fine("Answered " + identifier + " from cache");
+            return true;
+        }
+
+        final FailureCache.Failure failure = this.failures.get(key);
+
+        if (failure == null) {
+            return false;
+        }
+
+        Hilda.getLogger().fine("Answered " + identifier + " from failure cache (" + failure.reason + ')');
+
+        if (failure.reason == LoadFailure.NO_MATCHES) {
+            handler.noMatches();
+        } else {
+            handler.loadFailed(new FriendlyException(failure.message, failure.severity, null));
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the number of loads that waited on an identical in-flight load instead of starting their own.
+     * @return The number of remote loads saved.
+     */
+    public final long getCoalesced() {
+        return this.coalesced.get();
+    }
+
+    /**
+     * Gets the number of loads answered from the failure cache.
+     * @return The number of hits.
+     */
+    public final long getFailureHits() {
+        return this.failures.getHits();
+    }
+
+    /**
+     * Gets the number of failed loads currently remembered.
+     * @return The number of failures.
+     */
+    public final int getFailureSize() {
+        return this.failures.getSize();
+    }
+
+    /**
+     * Gets the number of cached results dropped to stay within capacity.
+     * @return The number of evictions.
+     */
+    public final long getCacheEvictions() {
+        return (this.cache == null) ? 0L : this.cache.getEvictions();
+    }
+
+    /**
+     * Gets the number of cached results dropped because they expired.
+     * @return The number of expirations.
+     */
+    public final long getCacheExpirations() {
+        return (this.cache == null) ? 0L : this.cache.getExpirations();
+    }
+
+    /**
+     * Gets the number of loads answered from the cache.
+     * @return The number of hits.
+     */
+    public final long getCacheHits() {
+        return (this.cache == null) ? 0L : this.cache.getHits();
+    }
+
+    /**
+     * Gets the number of loads the cache could not answer.
+     * @return The number of misses.
+     */
+    public final long getCacheMisses() {
+        return (this.cache == null) ? 0L : this.cache.getMisses();
+    }
+
+    /**
+     * Gets the number of results currently cached.
+     * @return The number of results.
+     */
+    public final int getCacheSize() {
+        return (this.cache == null) ? 0 : this.cache.getSize();
+    }
+
+    /**
+     * Delivers a cached result to a handler.
+     * @return Whether the result could be decoded and was delivered.
+     */
+    private boolean deliver(final TrackCache.Result result, final AudioLoadResultHandler handler) {
+        final List<AudioTrack> tracks = new ArrayList<>(result.tracks.length);
+
+        try {
+            for (final byte[] encoded : result.tracks) {
+                tracks.add(TrackCodec.decode(this.manager, encoded));
+            }
+        } catch (final IOException e) {
+            Hilda.getLogger().log(Level.FINE, "Couldn't decode cached result", e);
+            return false;
+        }
+
+        if (result.playlist) {
+            handler.playlistLoaded(new BasicAudioPlaylist(result.name, tracks, (result.selected == -1) ? null : tracks.get(result.selected), result.search));
+        } else {
+            handler.trackLoaded(tracks.get(0));
+        }
+
+        return true;
+    }
+
+    /**
+     * Encodes tracks for the cache.
+     * @return The encoded tracks or {@code null} if any track could not be encoded.
+     */
+    private byte[][] encode(final List<AudioTrack> tracks) {
+        final byte[][] encoded = new byte[tracks.size()][];
+
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = TrackCodec.encode(this.manager, tracks.get(i));
+
+            if (encoded[i] == null) {
+                return null;
+            }
+        }
+
+        return encoded;
+    }
+
+    /**
+     * Normalises an identifier so that equivalent requests share a cache entry. Search queries are compared ignoring case and repeated
+     * whitespace; URLs ignore the case of their scheme and host and any fragment.
+     * @param identifier The identifier to normalise.
+     * @return The normalised identifier.
+     */
+    static String normalise(final String identifier) {
+        final String trimmed = identifier.trim();
+        final int colon = trimmed.indexOf(':');
+
+        if ((colon > 0) && trimmed.regionMatches(true, colon - 6, "search", 0, 6)) {
+            return trimmed.substring(0, colon + 1).toLowerCase(Locale.ROOT) + trimmed.substring(colon + 1).trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        }
+
+        try {
+            final URI uri = new URI(trimmed);
+
+            if ((uri.getScheme() == null) || (uri.getHost() == null)) {
+                return trimmed;
+            }
+
+            return new URI(uri.getScheme().toLowerCase(Locale.ROOT), uri.getRawUserInfo(), uri.getHost().toLowerCase(Locale.ROOT), uri.getPort(), uri.getRawPath(), uri.getRawQuery(), null).toString();
+        } catch (final URISyntaxException ignored) {
+            return trimmed;
+        }
+    }
+
+    /**
+     * A remote load in progress. The result is cached, then passed to the handler that started the load and a copy of it to every handler that
+     * joined while it was in flight.
+     */
+    private final class Flight implements AudioLoadResultHandler {
+        private final String key;
+        private final AudioLoadResultHandler leader;
+        private final List<AudioLoadResultHandler> waiting = new ArrayList<>();
+        private boolean done = false;
+
+        private Flight(final String key, final AudioLoadResultHandler leader) {
+            this.key = key;
+            this.leader = leader;
+        }
+
+        /**
+         * Marks the load finished and stops new handlers joining.
+         * @return The handlers that joined the load.
+         */
+        private List<AudioLoadResultHandler> finish() {
+            TrackLoader.this.flights.remove(this.key, this);
+
+            synchronized (this) {
+                this.done = true;
+                return this.waiting;
+            }
+        }
+
+        /**
+         * Waits for the result of this load.
+         * @param handler The handler to receive a copy of the result.
+         * @return Whether the handler joined, or {@code false} if the load has already finished.
+         */
+        private synchronized boolean join(final AudioLoadResultHandler handler) {
+            if (this.done) {
+                return false;
+            }
+
+            this.waiting.add(handler);
+            return true;
+        }
+
+        @Override
+        public void loadFailed(final FriendlyException e) {
+            TrackLoader.this.failures.put(this.key, new FailureCache.Failure(LoadFailure.classify(e), e.getMessage(), e.severity));
+
+            final List<AudioLoadResultHandler> waiting = this.finish();
+            this.leader.loadFailed(e);
+            waiting.forEach(handler -> handler.loadFailed(e));
+        }
+
+        @Override
+        public void noMatches() {
+            TrackLoader.this.failures.put(this.key, new FailureCache.Failure(LoadFailure.NO_MATCHES, null, null));
+
+            final List<AudioLoadResultHandler> waiting = this.finish();
+            this.leader.noMatches();
+            waiting.forEach(AudioLoadResultHandler::noMatches);
+        }
+
+        @Override
+        public void playlistLoaded(final AudioPlaylist playlist) {
+            final List<AudioTrack> tracks = playlist.getTracks();
+
+            if ((TrackLoader.this.cache != null) && !tracks.isEmpty() && (tracks.size() <= TrackLoader.CACHE_PLAYLIST_LIMIT)) {
+                final byte[][] encoded = TrackLoader.this.encode(tracks);
+
+                if (encoded != null) {
+                    TrackLoader.this.cache.put(this.key, new TrackCache.Result(encoded, playlist.getName(), tracks.indexOf(playlist.getSelectedTrack()), true, playlist.isSearchResult()));
+                }
+            }
+
+            final List<AudioLoadResultHandler> waiting = this.finish();
+            this.leader.playlistLoaded(playlist);
+
+            for (final AudioLoadResultHandler handler : waiting) {
+                final List<AudioTrack> clones = new ArrayList<>(tracks.size());
+                AudioTrack selected = null;
+
+                for (final AudioTrack track : tracks) {
+                    final AudioTrack clone = track.makeClone();
+                    clones.add(clone);
+
+                    if (track == playlist.getSelectedTrack()) {
+                        selected = clone;
+                    }
+                }
+
+                handler.playlistLoaded(new BasicAudioPlaylist(playlist.getName(), clones, selected, playlist.isSearchResult()));
+            }
+        }
+
+        @Override
+        public void trackLoaded(final AudioTrack track) {
+            if (TrackLoader.this.cache != null) {
+                final byte[] encoded = TrackCodec.encode(TrackLoader.this.manager, track);
+
+                if (encoded != null) {
+                    TrackLoader.this.cache.put(this.key, new TrackCache.Result(new byte[][] { encoded }, null, -1, false, false));
+                }
+            }
+
+            final List<AudioLoadResultHandler> waiting = this.finish();
+            this.leader.trackLoaded(track);
+            waiting.forEach(handler -> handler.trackLoaded(track.makeClone()));
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+/**
+ * The reasons a player may have to decode and re-encode its audio instead of passing Opus frames straight through.
+ */
+public enum TranscodeReason {
+    /**
+     * The guild has set a volume other than 100%.
+     */
+    VOLUME,
+    /**
+     * The playing track was measured as loud and is being turned down.
+     */
+    NORMALISATION
+}
@@ -16,14 +16,18 @@
 package ch.jamiete.hilda.music.commands;
 
 import java.util.List;
-import com.google.gson.JsonElement;
 import ch.jamiete.hilda.Hilda;
 import ch.jamiete.hilda.Util;
 import ch.jamiete.hilda.commands.ChannelSeniorCommand;
 import ch.jamiete.hilda.commands.ChannelSubCommand;
-import ch.jamiete.hilda.configuration.Configuration;
+import ch.jamiete.hilda.music.MusicGuildSettings;
 import ch.jamiete.hilda.music.MusicManager;
+import ch.jamiete.hilda.music.MusicServer;
+import ch.jamiete.hilda.music.TrackLoader;
+import ch.jamiete.hilda.music.TranscodeReason;
+import net.dv8tion.jda.api.MessageBuilder;
 import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.TextChannel;
 import net.dv8tion.jda.api.entities.VoiceChannel;
@@ -43,25 +47,26 @@ class MusicAdminCommand extends ChannelSubCommand {
 
     @Override
     public final void execute(final Message message, final String[] args, final String label) {
-        final Configuration config = this.hilda.getConfigurationManager().getConfiguration(this.manager.getPlugin(), message.getGuild().getId());
+        final Guild guild = message.getGuild();
+        final MusicGuildSettings settings = this.manager.getSettings(guild);
 
         if (args.length == 0) {
-            this.usage(message, "<output/lock>", label);
+            this.usage(message, "<output/lock/limit/prefetch/normalise/stats>", label);
             return;
         }
 
         if ("output".equalsIgnoreCase(args[0])) {
             if (args.length == 1) { // Provide current value
-                final JsonElement output = config.get().get("output");
+                final String output = settings.getOutput();
 
                 if (output == null) {
                     this.reply(message, "There is no output channel currently forced.");
                 } else {
-                    final TextChannel channel = message.getGuild().getTextChannelById(output.getAsString());
+                    final TextChannel channel = guild.getTextChannelById(output);
 
                     if (channel == null) {
-                        config.get().remove("output");
-                        config.save();
+                        this.manager.updateSettings(guild, current -> current.withOutput(null));
+                        this.invalidateOutput(guild);
                         this.reply(message, "The output channel specified no longer exists. I've removed it.");
                     } else {
                         this.reply(message, "I'm currently outputting into " + channel.getAsMention());
@@ -73,8 +78,8 @@ class MusicAdminCommand extends ChannelSubCommand {
                 } else {
                     final TextChannel channel = message.getMentionedChannels().get(0);
 
-                    config.get().addProperty("output", channel.getId());
-                    config.save();
+                    this.manager.updateSettings(guild, current -> current.withOutput(channel.getId()));
+                    this.invalidateOutput(guild);
                     this.reply(message, "I'm now outputting into " + channel.getAsMention());
                 }
             }
@@ -82,34 +87,162 @@ class MusicAdminCommand extends ChannelSubCommand {
 
         if ("lock".equalsIgnoreCase(args[0])) {
             if (args.length == 1) { // Provide current value
-                final JsonElement output = config.get().get("lock");
+                final String lock = settings.getLock();
 
-                if (output == null) {
+                if (lock == null) {
                     this.reply(message, "There is no voice channel currently forced.");
                 } else {
-                    final VoiceChannel channel = message.getGuild().getVoiceChannelById(output.getAsString());
+                    final VoiceChannel channel = guild.getVoiceChannelById(lock);
 
                     if (channel == null) {
-                        config.get().remove("lock");
-                        config.save();
+                        this.manager.updateSettings(guild, current -> current.withLock(null));
                         this.reply(message, "The voice channel specified no longer exists. I've removed it.");
                     } else {
                         this.reply(message, "I'm currently locked to " + channel.getName());
                     }
                 }
             } else {
-                final List<VoiceChannel> channels = message.getGuild().getVoiceChannelsByName(Util.combineSplit(1, args, " "), true);
+                final List<VoiceChannel> channels = guild.getVoiceChannelsByName(Util.combineSplit(1, args, " "), true);
 
                 if (channels.isEmpty()) {
                     this.reply(message, "I couldn't find any channels matching that name.");
                 } else {
                     final VoiceChannel channel = channels.get(0);
 
-                    config.get().addProperty("lock", channel.getId());
-                    config.save();
+                    this.manager.updateSettings(guild, current -> current.withLock(channel.getId()));
                     this.reply(message, "I'm now locked to " + channel.getName());
                 }
             }
         }
+
+        if ("limit".equalsIgnoreCase(args[0])) {
+            if (args.length == 1) { // Provide current value
+                if (settings.hasQueueLimit()) {
+                    this.reply(message, "The queue is currently limited to " + settings.getQueueLimit() + " tracks.");
+                } else {
+                    this.reply(message, "The queue is limited to the default of " + MusicManager.QUEUE_LIMIT + " tracks.");
+                }
+            } else {
+                final int limit;
+
+                try {
+                    limit = Integer.parseInt(args[1]);
+                } catch (final NumberFormatException ignored) {
+                    this.usage(message, "limit [1–" + MusicManager.MAX_QUEUE_LIMIT + ']', label);
+                    return;
+                }
+
+                if ((limit < 1) || (limit > MusicManager.MAX_QUEUE_LIMIT)) {
+                    this.reply(message, "The queue limit must be between 1 and " + MusicManager.MAX_QUEUE_LIMIT + '.');
+                    return;
+                }
+
+                this.manager.updateSettings(guild, current -> current.withQueueLimit(limit));
+                this.reply(message, "The queue is now limited to " + limit + " tracks.");
+            }
+        }
+
+        if ("prefetch".equalsIgnoreCase(args[0])) {
+            if (args.length == 1) { // Provide current value
+                if (!settings.hasPrefetchLead()) {
+                    this.reply(message, "The next track is prefetched the default of " + MusicServer.PREFETCH_LEAD + " seconds before the current one ends.");
+                } else if (settings.getPrefetchLead() == 0) {
+                    this.reply(message, "The next track is not prefetched.");
+                } else {
+                    this.reply(message, "The next track is prefetched " + settings.getPrefetchLead() + " seconds before the current one ends.");
+                }
+            } else {
+                final int lead;
+
+                try {
+                    lead = Integer.parseInt(args[1]);
+                } catch (final NumberFormatException ignored) {
+                    this.usage(message, "prefetch [0–" + MusicServer.MAX_PREFETCH_LEAD + ']', label);
+                    return;
+                }
+
+                if ((lead < 0) || (lead > MusicServer.MAX_PREFETCH_LEAD)) {
+                    this.reply(message, "The prefetch time must be between 0 and " + MusicServer.MAX_PREFETCH_LEAD + " seconds.");
+                    return;
+                }
+
+                this.manager.updateSettings(guild, current -> current.withPrefetchLead(lead));
+                this.reply(message, (lead == 0) ? "The next track will no longer be prefetched." : "The next track will now be prefetched " + lead + " seconds before the current one ends.");
+            }
+        }
+
+        if ("normalise".equalsIgnoreCase(args[0])) {
+            if (args.length == 1) { // Provide current value
+                if (settings.isNormalising()) {
+                    this.reply(message, "Loud tracks are currently turned down automatically.");
+                } else {
+                    this.reply(message, "Loud tracks are currently played as they are.");
+                }
+            } else if ("on".equalsIgnoreCase(args[1]) || "off".equalsIgnoreCase(args[1])) {
+                final boolean normalise = "on".equalsIgnoreCase(args[1]);
+
+                this.manager.updateSettings(guild, current -> current.withNormalising(normalise));
+                this.reply(message, normalise ? "Loud tracks will now be turned down automatically." : "Loud tracks will now be played as they are.");
+            } else {
+                this.usage(message, "normalise [on/off]", label);
+            }
+        }
+
+        if ("stats".equalsIgnoreCase(args[0])) {
+            this.reply(message, this.getStats());
+        }
+    }
+
+    /**
+     * Builds a summary of how the music player is performing across every server.
+     * @return The summary.
+     */
+    private Message getStats() {
+        final TrackLoader loader = this.manager.getLoader();
+        final MessageBuilder mb = new MessageBuilder();
+
+        mb.append("Music stats", MessageBuilder.Formatting.BOLD).append("\n\n");
+
+        mb.append("Servers: ", MessageBuilder.Formatting.BOLD).append(this.manager.getNumber());
+        mb.append(" (").append(this.manager.getHibernatingCount()).append(" hibernating)\n");
+
+        mb.append("This session: ", MessageBuilder.Formatting.BOLD).append(this.manager.getPlayed()).append(" played, ");
+        mb.append(this.manager.getQueued()).append(" queued\n");
+
+        mb.append("Queued items: ", MessageBuilder.Formatting.BOLD).append(this.manager.getQueueFootprint() / 1024L).append(" KiB\n");
+
+        mb.append("Loads: ", MessageBuilder.Formatting.BOLD).append(loader.getCacheHits()).append(" cache hits, ");
+        mb.append(loader.getFailureHits()).append(" failure cache hits, ").append(loader.getCoalesced()).append(" coalesced\n");
+
+        mb.append("Recorded frames: ", MessageBuilder.Formatting.BOLD).append(this.manager.getFrameCacheHits()).append(" plays, ");
+        mb.append(this.manager.getFrameCacheBytes() / (1024L * 1024L)).append(" MiB on disk\n");
+
+        mb.append("Loudness: ", MessageBuilder.Formatting.BOLD).append(this.manager.getLoudnessAnalysed()).append(" tracks measured\n");
+
+        mb.append("Transcoding: ", MessageBuilder.Formatting.BOLD).append(this.manager.getTranscoding(TranscodeReason.VOLUME)).append(" for volume, ");
+        mb.append(this.manager.getTranscoding(TranscodeReason.NORMALISATION)).append(" for normalisation\n");
+
+        mb.append("Shared streams: ", MessageBuilder.Formatting.BOLD).append(this.manager.getBroadcastCount()).append(" (");
+        mb.append(this.manager.getBroadcastSubscribers()).append(" servers)\n");
+
+        mb.append("Timers: ", MessageBuilder.Formatting.BOLD).append(this.manager.getOutstandingTimers()).append(" outstanding\n");
+
+        mb.append("Notifications: ", MessageBuilder.Formatting.BOLD).append(this.manager.getOutboundDepth()).append(" waiting, ");
+        mb.append(String.format("%.2f", this.manager.getOutboundMergeRatio())).append(" lines per message, ");
+        mb.append(this.manager.getOutboundSuperseded()).append(" superseded");
+
+        return mb.build();
+    }
+
+    /**
+     * Makes the server of a guild, if there is one, choose its output channel again.
+     * @param guild The guild.
+     */
+    private void invalidateOutput(final Guild guild) {
+        final MusicServer server = this.manager.getServer(guild);
+
+        if (server != null) {
+            server.invalidateOutput();
+        }
     }
 }
\ No newline at end of file
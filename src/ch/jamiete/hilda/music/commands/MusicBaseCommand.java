@@ -32,6 +32,7 @@ public class MusicBaseCommand extends ChannelSeniorCommand {
 
         this.registerSubcommand(new MusicAdminCommand(hilda, this, manager));
         this.registerSubcommand(new MusicForceskipCommand(hilda, this, manager));
+        this.registerSubcommand(new MusicMoveCommand(hilda, this, manager));
         this.registerSubcommand(new MusicNowPlayingCommand(hilda, this, manager));
         this.registerSubcommand(new MusicPlayCommand(hilda, this, manager));
         this.registerSubcommand(new MusicQueueCommand(hilda, this, manager));
@@ -59,15 +59,21 @@ class MusicForceskipCommand extends ChannelSubCommand {
             return;
         }
 
-        if (server.getPlayer().getPlayingTrack() == null) {
-            Hilda.getLogger().info("Queue was stuck!");
-            List<QueueItem> queue = server.getQueue();
-            server.play(queue.isEmpty() ? null : queue.get(0));
-            this.reply(message, "Oops! Skipping...");
-        } else {
-            this.reply(message, "Skipping...");
-            server.getPlayer().stopTrack();
-        }
+        server.execute(() -> {
+            if (server.isStopping()) {
+                return;
+            }
+
+            if (server.getPlayer().getPlayingTrack() == null) {
+                Hilda.getLogger().info("Queue was stuck!");
+                List<QueueItem> queue = server.getQueue();
+                server.play(queue.isEmpty() ? null : queue.get(0));
+                this.reply(message, "Oops! Skipping...");
+            } else {
+                this.reply(message, "Skipping...");
+                server.getPlayer().stopTrack();
+            }
+        });
     }
 
 }
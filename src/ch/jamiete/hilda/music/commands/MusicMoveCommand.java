@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music.commands;
+
+import ch.jamiete.hilda.Hilda;
+import ch.jamiete.hilda.Util;
+import ch.jamiete.hilda.commands.ChannelSeniorCommand;
+import ch.jamiete.hilda.commands.ChannelSubCommand;
+import ch.jamiete.hilda.music.MusicManager;
+import ch.jamiete.hilda.music.MusicServer;
+import ch.jamiete.hilda.music.QueueItem;
+import net.dv8tion.jda.api.entities.Message;
+
+class MusicMoveCommand extends ChannelSubCommand {
+    private final MusicManager manager;
+
+    MusicMoveCommand(final Hilda hilda, final ChannelSeniorCommand senior, final MusicManager manager) {
+        super(hilda, senior);
+
+        this.manager = manager;
+
+        this.setName("move");
+        this.setDescription("Moves a song to a different place in the queue.");
+    }
+
+    @Override
+    public final void execute(final Message message, final String[] args, final String label) {
+        if (!MusicManager.isDJ(message)) {
+            this.reply(message, "You must be a DJ to use this command.");
+            return;
+        }
+
+        final MusicServer server = this.manager.getServer(message.getGuild());
+
+        if (server == null) {
+            this.reply(message, "There isn't anything playing.");
+            return;
+        }
+
+        if (args.length < 2) {
+            this.usage(message, "<queue_code> <new_queue_code>", label);
+            return;
+        }
+
+        final int from;
+        final int to;
+
+        try {
+            from = Integer.parseInt(args[0]) - 1;
+            to = Integer.parseInt(args[1]) - 1;
+        } catch (final NumberFormatException ignored) {
+            this.usage(message, "<queue_code> <new_queue_code>", label);
+            return;
+        }
+
+        server.execute(() -> {
+            if (server.isStopping()) {
+                return;
+            }
+
+            final QueueItem item = server.move(from, to);
+
+            if (item == null) {
+                this.reply(message, "There is no song with that queue code.");
+                return;
+            }
+
+            this.reply(message, "OK, I've moved " + Util.sanitise(MusicManager.getFriendly(item)) + " to position " + (to + 1) + " in the queue!");
+        });
+    }
+
+}
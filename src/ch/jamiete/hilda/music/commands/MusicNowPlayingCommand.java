@@ -16,6 +16,7 @@
 package ch.jamiete.hilda.music.commands;
 
 import java.util.Arrays;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import net.dv8tion.jda.api.MessageBuilder;
 import net.dv8tion.jda.api.entities.Message;
 import org.apache.commons.lang3.time.DurationFormatUtils;
@@ -52,13 +53,15 @@ class MusicNowPlayingCommand extends ChannelSubCommand {
         final MessageBuilder mb = new MessageBuilder();
         final QueueItem playing = server.getPlaying();
 
-        mb.append("Now playing ").append(Util.sanitise(MusicManager.getFriendly(playing.getTrack()))).append("\n");
+        final AudioTrack track = server.getPlayer().getPlayingTrack();
 
-        if (playing.getTrack().getInfo().length != 0L) {
+        mb.append("Now playing ").append(Util.sanitise(MusicManager.getFriendly(playing))).append("\n");
+
+        if ((track != null) && (track.getInfo().length != 0L)) {
             mb.append("\n").append("Time: ", MessageBuilder.Formatting.BOLD);
-            mb.append(DurationFormatUtils.formatDuration(playing.getTrack().getPosition(), "HH:mm:ss", true));
+            mb.append(DurationFormatUtils.formatDuration(track.getPosition(), "HH:mm:ss", true));
             mb.append("/");
-            mb.append(DurationFormatUtils.formatDuration(playing.getTrack().getDuration(), "HH:mm:ss", true));
+            mb.append(DurationFormatUtils.formatDuration(track.getDuration(), "HH:mm:ss", true));
         }
 
         mb.append("\n");
@@ -69,6 +72,11 @@ class MusicNowPlayingCommand extends ChannelSubCommand {
         final int needed = (int) Math.ceil((double) server.getUsers() / 2);
         mb.append(server.getSkips()).append("/").append(needed);
 
+        if (server.getTransitionGap() >= 0L) {
+            mb.append("\n");
+            mb.append("Last transition gap: ", MessageBuilder.Formatting.BOLD).append(server.getTransitionGap()).append("ms");
+        }
+
         this.reply(message, mb.build());
     }
 
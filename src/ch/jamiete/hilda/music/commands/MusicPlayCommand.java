@@ -16,7 +16,6 @@
 package ch.jamiete.hilda.music.commands;
 
 import java.util.Arrays;
-import com.google.gson.JsonElement;
 import ch.jamiete.hilda.Hilda;
 import ch.jamiete.hilda.Util;
 import ch.jamiete.hilda.commands.ChannelSeniorCommand;
@@ -57,43 +56,51 @@ class MusicPlayCommand extends ChannelSubCommand {
             return;
         }
 
-        final MusicServer server = this.manager.hasServer(message.getGuild()) ? this.manager.getServer(message.getGuild()) : this.manager.createServer(message.getGuild());
+        final VoiceChannel channel = member.getVoiceState().getChannel();
+        final MusicServer server = this.manager.getOrCreateServer(message.getGuild());
 
-        if (server.getChannel() == null) {
-            final JsonElement lock = server.getConfig().get().get("lock");
+        server.execute(() -> {
+            if (server.isStopping()) {
+                this.reply(message, "I've just stopped playing in this server; please queue that again.");
+                return;
+            }
+
+            if (server.getChannel() == null) {
+                final String lock = server.getSettings().getLock();
 
-            if (lock != null) {
-                final VoiceChannel req = message.getGuild().getVoiceChannelById(lock.getAsString());
+                if (lock != null) {
+                    final VoiceChannel req = message.getGuild().getVoiceChannelById(lock);
+
+                    if ((req != null) && !channel.equals(req)) {
+                        Hilda.getLogger().fine("Rejected command because user not in locked voice channel");
+                        this.reply(message, "You can only queue music in " + req.getName());
+                        return;
+                    }
+                }
 
-                if ((req != null) && !member.getVoiceState().getChannel().equals(req)) {
-                    Hilda.getLogger().fine("Rejected command because user not in locked voice channel");
-                    this.reply(message, "You can only queue music in " + req.getName());
+                server.setChannel(channel); // Join channel
+            } else {
+                if (server.getChannel() != channel) {
+                    Hilda.getLogger().fine("Rejected command because user not in same voice channel");
+                    this.reply(message, "You must be in the same voice channel as me to queue music.");
                     return;
                 }
             }
 
-            server.setChannel(member.getVoiceState().getChannel()); // Join channel
-        } else {
-            if (server.getChannel() != member.getVoiceState().getChannel()) {
-                Hilda.getLogger().fine("Rejected command because user not in same voice channel");
-                this.reply(message, "You must be in the same voice channel as me to queue music.");
+            // URL logic
+            if ((args.length == 1) && args[0].toLowerCase().startsWith("http")) {
+                Hilda.getLogger().info("Attempting to load URL " + args[0]);
+                message.getChannel().sendTyping().queue();
+                this.manager.getLoader().load(server, args[0], new LoadResults(server, message));
                 return;
             }
-        }
 
-        // URL logic
-        if ((args.length == 1) && args[0].toLowerCase().startsWith("http")) {
-            Hilda.getLogger().info("Attempting to load URL " + args[0]);
+            // Search logic
+            final String search = Util.combineSplit(0, args, " ");
+            Hilda.getLogger().info("Attempting to search YouTube for " + search);
             message.getChannel().sendTyping().queue();
-            this.manager.getAudioPlayerManager().loadItemOrdered(server.getPlayer(), args[0], new LoadResults(server, message));
-            return;
-        }
-
-        // Search logic
-        final String search = Util.combineSplit(0, args, " ");
-        Hilda.getLogger().info("Attempting to search YouTube for " + search);
-        message.getChannel().sendTyping().queue();
-        this.manager.getAudioPlayerManager().loadItemOrdered(server.getPlayer(), "ytsearch:" + search, new LoadResults(server, message, true));
+            this.manager.getLoader().load(server, "ytsearch:" + search, new LoadResults(server, message, true));
+        });
     }
 
 }
@@ -27,7 +27,6 @@ import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
 import org.apache.commons.lang3.StringUtils;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 class MusicQueueCommand extends ChannelSubCommand {
@@ -66,31 +65,31 @@ class MusicQueueCommand extends ChannelSubCommand {
             }
         }
 
-        final List<QueueItem> queue = server.getQueue();
+        final int size = server.getQueueSize();
 
-        if (queue.isEmpty()) {
+        if (size == 0) {
             this.reply(message, "There isn't anything queued.");
             return;
         }
 
-        final List<QueueItem> tracks = MusicQueueCommand.getPage(queue, page, pageSize);
+        final List<QueueItem> tracks = server.getQueue(page * pageSize, (page * pageSize) + pageSize);
         final MessageBuilder sb = new MessageBuilder();
 
         if (tracks.isEmpty()) {
             this.reply(message, "That page is empty.");
         } else {
-            sb.append("There ").append((queue.size() == 1) ? "is" : "are").append(" ");
-            sb.append(queue.size()).append(" ").append((queue.size() == 1) ? "track" : "tracks");
+            sb.append("There ").append((size == 1) ? "is" : "are").append(" ");
+            sb.append(size).append(" ").append((size == 1) ? "track" : "tracks");
             sb.append(" queued for ").append(Util.getFriendlyTime(server.getDuration()));
 
-            if (tracks.size() != queue.size()) {
+            if (tracks.size() != size) {
                 sb.append("; showing tracks ");
 
                 if (page == 0) {
                     sb.append("1–").append(pageSize);
                 } else {
                     final int first = (page * pageSize) + 1;
-                    sb.append(first).append("–").append(Math.min((first + pageSize) - 1, queue.size()));
+                    sb.append(first).append("–").append(Math.min((first + pageSize) - 1, size));
                 }
             }
 
@@ -99,9 +98,9 @@ class MusicQueueCommand extends ChannelSubCommand {
             for (final QueueItem track : tracks) {
                 sb.append("[" + ++queue_code + ']', MessageBuilder.Formatting.BLOCK).append(" ");
 
-                sb.append(Util.sanitise(MusicManager.getFriendly(track.getTrack())));
+                sb.append(Util.sanitise(MusicManager.getFriendly(track)));
 
-                final String time = MusicManager.getFriendlyTime(track.getTrack());
+                final String time = MusicManager.getFriendlyTime(track);
                 if (!time.trim().isEmpty()) {
                     sb.append(" (").append(time).append(")");
                 }
@@ -112,23 +111,13 @@ class MusicQueueCommand extends ChannelSubCommand {
                 sb.append("\n");
             }
 
-            if (tracks.size() != queue.size()) {
+            if (tracks.size() != size) {
                 sb.append("\n");
-                sb.append("End of page ").append(page + 1).append("/").append((int) Math.ceil((double) queue.size() / (double) pageSize)).append(".");
+                sb.append("End of page ").append(page + 1).append("/").append((int) Math.ceil((double) size / (double) pageSize)).append(".");
             }
 
             sb.buildAll(MessageBuilder.SplitPolicy.NEWLINE).forEach(m -> this.reply(message, m));
         }
     }
 
-    private static <T> List<T> getPage(final List<T> sourceList, final int page, final int pageSize) {
-        final int fromIndex = page * pageSize;
-
-        if ((sourceList == null) || (sourceList.size() < fromIndex)) {
-            return Collections.emptyList();
-        }
-
-        return sourceList.subList(fromIndex, Math.min(fromIndex + pageSize, sourceList.size()));
-    }
-
 }
@@ -26,7 +26,6 @@ import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
 
 import java.util.Collections;
-import java.util.List;
 
 class MusicRemoveCommand extends ChannelSubCommand {
     private final MusicManager manager;
@@ -51,15 +50,13 @@ class MusicRemoveCommand extends ChannelSubCommand {
             return;
         }
 
-        final List<QueueItem> queue = server.getQueue();
-
         if ((member.getVoiceState().getChannel() != server.getChannel()) && !MusicManager.isDJ(message)) {
             Hilda.getLogger().fine("Rejected command because user not in my voice channel");
             this.reply(message, "You must be in the same voice channel as me to skip.");
             return;
         }
 
-        if (queue.isEmpty()) {
+        if (server.getQueueSize() == 0) {
             Hilda.getLogger().fine("Rejected command because no tracks queued");
             this.reply(message, "There isn't anything queued.");
             return;
@@ -73,20 +70,28 @@ class MusicRemoveCommand extends ChannelSubCommand {
             this.usage(message, "<queue_code>", label);
         }
 
-        if ((to_remove < 0) || (to_remove >= queue.size())) {
+        final QueueItem item = server.getQueued(to_remove);
+
+        if (item == null) {
             this.reply(message, "There is no song with that queue code.");
             return;
         }
 
-        final QueueItem item = queue.get(to_remove);
-
-        if (!item.getUserId().equals(message.getAuthor().getId()) && !MusicManager.isDJ(message)) {
+        if ((item.getUserId() != message.getAuthor().getIdLong()) && !MusicManager.isDJ(message)) {
             this.reply(message, "You can't remove a song you didn't queue.");
             return;
         }
 
-        server.unqueue(item);
-        this.reply(message, "OK, I've removed " + Util.sanitise(MusicManager.getFriendly(item.getTrack())) + " from the queue!");
+        final int index = to_remove;
+
+        server.execute(() -> {
+            if (server.isStopping()) {
+                return;
+            }
+
+            server.unqueue(index, item);
+            this.reply(message, "OK, I've removed " + Util.sanitise(MusicManager.getFriendly(item)) + " from the queue!");
+        });
     }
 
 }
@@ -60,13 +60,19 @@ class MusicResetCommand extends ChannelSubCommand {
             return;
         }
 
-        if (server.canShutdown()) {
-            server.shutdown();
-            this.reply(message, "Music reset.");
-        } else {
-            server.shutdownNow(false);
-            this.reply(message, "Music reset. I can't leave the channel right now, but the music server has been reset.");
-        }
+        server.execute(() -> {
+            if (server.isStopping()) {
+                return;
+            }
+
+            if (server.canShutdown()) {
+                server.shutdown();
+                this.reply(message, "Music reset.");
+            } else {
+                server.shutdownNow(false);
+                this.reply(message, "Music reset. I can't leave the channel right now, but the music server has been reset.");
+            }
+        });
     }
 
 }
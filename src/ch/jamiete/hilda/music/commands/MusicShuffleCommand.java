@@ -57,8 +57,14 @@ class MusicShuffleCommand extends ChannelSubCommand {
             return;
         }
 
-        server.shuffle();
-        this.reply(message, "Shuffled queue!");
+        server.execute(() -> {
+            if (server.isStopping()) {
+                return;
+            }
+
+            server.shuffle();
+            this.reply(message, "Shuffled queue!");
+        });
     }
 
 }
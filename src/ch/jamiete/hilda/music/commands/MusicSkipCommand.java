@@ -65,57 +65,63 @@ class MusicSkipCommand extends ChannelSubCommand {
             return;
         }
 
-        if (member.getVoiceState().getChannel() != server.getChannel()) {
-            Hilda.getLogger().fine("Rejected command because user not in my voice channel");
-            this.reply(message, "You must be in the same voice channel as me to skip.");
-            return;
-        }
-
-        if ((server.getPlayer().getPlayingTrack() == null) && !server.getQueue().isEmpty()) {
-            Hilda.getLogger().info("The queue was stuck!");
-            List<QueueItem> queue = server.getQueue();
-            server.play(queue.isEmpty() ? null : queue.get(0));
-            this.reply(message, "Oops! Skipping...");
-            return;
-        }
+        server.execute(() -> {
+            if (server.isStopping()) {
+                return;
+            }
 
-        if (server.getPlayer().getPlayingTrack() == null) {
-            Hilda.getLogger().fine("Rejected command because no track playing");
-            this.reply(message, "There isn't anything playing.");
-            return;
-        }
+            if (member.getVoiceState().getChannel() != server.getChannel()) {
+                Hilda.getLogger().fine("Rejected command because user not in my voice channel");
+                this.reply(message, "You must be in the same voice channel as me to skip.");
+                return;
+            }
 
-        if (server.getPlaying().getUserId().equals(member.getUser().getId())) {
-            Hilda.getLogger().info("Skipped song because user had requested it");
-            this.reply(message, "Skipping...");
-            server.getPlayer().stopTrack();
-            return;
-        }
+            if ((server.getPlayer().getPlayingTrack() == null) && !server.getQueue().isEmpty()) {
+                Hilda.getLogger().info("The queue was stuck!");
+                List<QueueItem> queue = server.getQueue();
+                server.play(queue.isEmpty() ? null : queue.get(0));
+                this.reply(message, "Oops! Skipping...");
+                return;
+            }
 
-        if (server.hasSkipped(member.getUser().getId())) {
-            Hilda.getLogger().fine("Rejected command because user already voted to skip");
-            this.reply(message, "You've already voted to skip the current song.");
-        } else {
-            final StringBuilder sb = new StringBuilder();
+            if (server.getPlayer().getPlayingTrack() == null) {
+                Hilda.getLogger().fine("Rejected command because no track playing");
+                this.reply(message, "There isn't anything playing.");
+                return;
+            }
 
-            sb.append(member.getEffectiveName()).append(" has voted to skip the song!");
-            server.addSkip(member.getUser().getId());
+            if (server.getPlaying().getUserId() == member.getUser().getIdLong()) {
+                Hilda.getLogger().info("Skipped song because user had requested it");
+                this.reply(message, "Skipping...");
+                server.getPlayer().stopTrack();
+                return;
+            }
 
-            if (server.shouldSkip()) {
-                sb.append(" Skipping...");
+            if (server.hasSkipped(member.getUser().getIdLong())) {
+                Hilda.getLogger().fine("Rejected command because user already voted to skip");
+                this.reply(message, "You've already voted to skip the current song.");
             } else {
-                final int needed = (int) Math.ceil((double) server.getUsers() / 2);
-                sb.append(" **").append(server.getSkips()).append('/').append(needed).append("**");
-                Hilda.getLogger().fine("Skips: " + server.getSkips() + '/' + needed);
-            }
+                final StringBuilder sb = new StringBuilder();
 
-            this.reply(message, sb.toString());
+                sb.append(member.getEffectiveName()).append(" has voted to skip the song!");
+                server.addSkip(member.getUser().getIdLong());
 
-            if (server.shouldSkip()) { // So that message sends before track changes
-                Hilda.getLogger().info("Skipping song...");
-                server.getPlayer().stopTrack();
+                if (server.shouldSkip()) {
+                    sb.append(" Skipping...");
+                } else {
+                    final int needed = (int) Math.ceil((double) server.getUsers() / 2);
+                    sb.append(" **").append(server.getSkips()).append('/').append(needed).append("**");
+                    Hilda.getLogger().fine("Skips: " + server.getSkips() + '/' + needed);
+                }
+
+                this.reply(message, sb.toString());
+
+                if (server.shouldSkip()) { // So that message sends before track changes
+                    Hilda.getLogger().info("Skipping song...");
+                    server.getPlayer().stopTrack();
+                }
             }
-        }
+        });
     }
 
 }
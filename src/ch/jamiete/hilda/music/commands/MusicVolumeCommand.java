@@ -49,7 +49,7 @@ class MusicVolumeCommand extends ChannelSubCommand {
         }
 
         if (args.length == 0) {
-            this.reply(message, "Volume currently at " + server.getPlayer().getVolume() + '%');
+            this.reply(message, "Volume currently at " + server.getVolume() + '%');
             return;
         }
 
@@ -82,8 +82,14 @@ class MusicVolumeCommand extends ChannelSubCommand {
             return;
         }
 
-        server.getPlayer().setVolume(volume);
-        this.reply(message, "OK, set volume to " + volume + "%!");
+        server.execute(() -> {
+            if (server.isStopping()) {
+                return;
+            }
+
+            server.setVolume(volume);
+            this.reply(message, "OK, set volume to " + volume + "%!");
+        });
     }
 
 }
@@ -26,7 +26,7 @@ public class MusicLeaveTask implements Runnable {
 
     @Override
     public final void run() {
-        this.server.shutdown();
+        this.server.execute(this.server::shutdown);
     }
 
 }
@@ -27,11 +27,11 @@ public class MusicStartupCheckerTask extends TimerTask {
 
     @Override
     public final void run() {
-        if (this.server.isStopping()) {
-            return;
-        }
-
-        this.server.prompt();
+        this.server.execute(() -> {
+            if (!this.server.isStopping()) {
+                this.server.prompt();
+            }
+        });
     }
 
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import org.junit.Test;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+public class AudioPlayerSendHandlerTest {
+
+    /**
+     * A stub player that provides a fixed sequence of one-byte frames and counts how often it is asked for one.
+     */
+    private static final class StubPlayer {
+        private final Queue<Byte> frames = new ArrayDeque<>();
+        private int requests = 0;
+
+        private StubPlayer(final int... frames) {
+            for (final int frame : frames) {
+                this.frames.add((byte) frame);
+            }
+        }
+
+        private AudioPlayer proxy() {
+            return (AudioPlayer) Proxy.newProxyInstance(AudioPlayer.class.getClassLoader(), new Class<?>[] { AudioPlayer.class }, (proxy, method, args) -> {
+                if ("provide".equals(method.getName()) && (args != null) && (args.length == 1) && (args[0] instanceof MutableAudioFrame)) {
+                    this.requests++;
+
+                    final Byte frame = this.frames.poll();
+
+                    if (frame == null) {
+                        return false;
+                    }
+
+                    ((MutableAudioFrame) args[0]).store(new byte[] { frame }, 0, 1);
+                    return true;
+                }
+
+                if ("getVolume".equals(method.getName())) {
+                    return 100;
+                }
+
+                throw new UnsupportedOperationException(method.getName());
+            });
+        }
+    }
+
+    private static byte read(final ByteBuffer buffer) {
+        assertEquals(1, buffer.remaining());
+        return buffer.get(buffer.position());
+    }
+
+    @Test
+    public void sendsEachFrameOnce() {
+        final StubPlayer player = new StubPlayer(1, 2, 3);
+        final AudioPlayerSendHandler handler = new AudioPlayerSendHandler(player.proxy());
+
+        for (int frame = 1; frame <= 3; frame++) {
+            assertTrue(handler.canProvide());
+            assertTrue(handler.canProvide());
+            assertEquals(frame, AudioPlayerSendHandlerTest.read(handler.provide20MsAudio()));
+        }
+
+        assertEquals(3, player.requests);
+
+        assertFalse(handler.canProvide());
+        assertNull(handler.provide20MsAudio());
+    }
+
+    @Test
+    public void fetchesWithoutCanProvide() {
+        final StubPlayer player = new StubPlayer(1, 2);
+        final AudioPlayerSendHandler handler = new AudioPlayerSendHandler(player.proxy());
+
+        assertEquals(1, AudioPlayerSendHandlerTest.read(handler.provide20MsAudio()));
+        assertEquals(2, AudioPlayerSendHandlerTest.read(handler.provide20MsAudio()));
+        assertNull(handler.provide20MsAudio());
+        assertEquals(3, player.requests);
+    }
+
+    @Test
+    public void sendsPendingFrameAfterSwitchingPlayer() {
+        final StubPlayer first = new StubPlayer(1, 2);
+        final StubPlayer second = new StubPlayer(3);
+        final AudioPlayerSendHandler handler = new AudioPlayerSendHandler(first.proxy());
+
+        assertTrue(handler.canProvide());
+        handler.setPlayer(second.proxy());
+
+        assertEquals(1, AudioPlayerSendHandlerTest.read(handler.provide20MsAudio()));
+        assertEquals(3, AudioPlayerSendHandlerTest.read(handler.provide20MsAudio()));
+        assertEquals(1, first.requests);
+        assertEquals(1, second.requests);
+    }
+
+}
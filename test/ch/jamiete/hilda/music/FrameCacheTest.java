@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.jamiete.hilda.music;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameCacheTest {
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        this.directory = Files.createTempDirectory("frames").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        final File[] files = this.directory.listFiles();
+
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+
+        this.directory.delete();
+    }
+
+    /**
+     * Plays a track often enough for it to be recorded.
+     * @param cache The cache.
+     * @param identifier The identifier of the track.
+     * @return The recorder.
+     */
+    private static FrameCache.Recorder recorder(final FrameCache cache, final String identifier) {
+        for (int i = 1; i < FrameCache.RECORD_AFTER; i++) {
+            assertNull(cache.record(identifier));
+        }
+
+        final FrameCache.Recorder recorder = cache.record(identifier);
+
+        assertNotNull(recorder);
+        return recorder;
+    }
+
+    /**
+     * Records frames of the given sizes, each filled with its index, and commits them.
+     * @param cache The cache.
+     * @param identifier The identifier of the track.
+     * @param sizes The size of each frame.
+     */
+    private static void record(final FrameCache cache, final String identifier, final int... sizes) {
+        final FrameCache.Recorder recorder = FrameCacheTest.recorder(cache, identifier);
+
+        for (int i = 0; i < sizes.length; i++) {
+            assertTrue(recorder.write(FrameCacheTest.frame(i, sizes[i]), i * CachedAudioTrack.FRAME_DURATION));
+        }
+
+        recorder.commit(() -> {});
+    }
+
+    private static ByteBuffer frame(final int fill, final int size) {
+        final byte[] frame = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            frame[i] = (byte) fill;
+        }
+
+        return ByteBuffer.wrap(frame);
+    }
+
+    private int files() {
+        final String[] names = this.directory.list();
+        return (names == null) ? 0 : names.length;
+    }
+
+    @Test
+    public void replaysCommittedFrames() {
+        final FrameCache cache = new FrameCache(this.directory, 1L << 20, Runnable::run);
+        final FrameCache.Recorder recorder = FrameCacheTest.recorder(cache, "a");
+        final AtomicBoolean stored = new AtomicBoolean(false);
+
+        // More than one batch, so frames are handed to the writer before the commit
+        for (int i = 0; i < 300; i++) {
+            assertTrue(recorder.write(FrameCacheTest.frame(i, 200), i * CachedAudioTrack.FRAME_DURATION));
+        }
+
+        recorder.commit(() -> stored.set(true));
+
+        assertTrue(stored.get());
+        assertEquals(1, cache.getSize());
+        assertEquals(300L * 202L, cache.getBytes());
+
+        final FrameCache.Lease lease = cache.acquire("a");
+        final ByteBuffer frames = lease.getFrames().duplicate();
+
+        for (int i = 0; i < 300; i++) {
+            final byte[] frame = new byte[frames.getShort() & 0xFFFF];
+
+            frames.get(frame);
+            assertArrayEquals(FrameCacheTest.frame(i, 200).array(), frame);
+        }
+
+        assertFalse(frames.hasRemaining());
+        lease.release();
+        assertNull(cache.record("a"));
+    }
+
+    @Test
+    public void skipsFramesBeforeTheTrackStarts() {
+        final FrameCache cache = new FrameCache(this.directory, 1L << 20, Runnable::run);
+        final FrameCache.Recorder recorder = FrameCacheTest.recorder(cache, "a");
+
+        assertTrue(recorder.write(FrameCacheTest.frame(9, 10), 5000L));
+        assertTrue(recorder.write(FrameCacheTest.frame(0, 10), 0L));
+        assertTrue(recorder.write(FrameCacheTest.frame(1, 10), 20L));
+        recorder.commit(() -> {});
+
+        assertEquals(24L, cache.getBytes());
+    }
+
+    @Test
+    public void dropsPartialRecordings() {
+        final FrameCache cache = new FrameCache(this.directory, 1L << 20, Runnable::run);
+        final FrameCache.Recorder late = FrameCacheTest.recorder(cache, "a");
+
+        // Started after the first frame, so never records anything
+        assertTrue(late.write(FrameCacheTest.frame(1, 10), 20L));
+        late.commit(() -> {});
+
+        final FrameCache.Recorder gap = FrameCacheTest.recorder(cache, "b");
+
+        assertTrue(gap.write(FrameCacheTest.frame(0, 10), 0L));
+        assertFalse(gap.write(FrameCacheTest.frame(2, 10), 40L));
+        gap.abort();
+
+        assertEquals(0, cache.getSize());
+        assertEquals(0, this.files());
+        assertNotNull(cache.record("b"));
+    }
+
+    @Test
+    public void stopsAtTheRecordingLimit() {
+        final FrameCache cache = new FrameCache(this.directory, 8000L, Runnable::run);
+        final FrameCache.Recorder recorder = FrameCacheTest.recorder(cache, "a");
+
+        // Each recording may take an eighth of the capacity
+        for (int i = 0; i < 10; i++) {
+            assertTrue(recorder.write(FrameCacheTest.frame(i, 98), i * CachedAudioTrack.FRAME_DURATION));
+        }
+
+        assertFalse(recorder.write(FrameCacheTest.frame(10, 98), 10L * CachedAudioTrack.FRAME_DURATION));
+        recorder.abort();
+
+        assertEquals(0, cache.getSize());
+        assertEquals(0, this.files());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final FrameCache cache = new FrameCache(this.directory, 800L, Runnable::run);
+
+        for (final String identifier : new String[] { "a", "b", "c", "d", "e", "f", "g", "h" }) {
+            FrameCacheTest.record(cache, identifier, 48, 48);
+        }
+
+        cache.acquire("a").release();
+        FrameCacheTest.record(cache, "i", 48, 48);
+
+        assertEquals(8, cache.getSize());
+        assertEquals(1L, cache.getEvictions());
+        assertEquals(800L, cache.getBytes());
+        assertNotNull(cache.acquire("a"));
+        assertNull(cache.acquire("b"));
+        assertEquals(8, this.files());
+    }
+
+    @Test
+    public void keepsEvictedRecordingsUntilReleased() {
+        final FrameCache cache = new FrameCache(this.directory, 800L, Runnable::run);
+
+        FrameCacheTest.record(cache, "a", 48, 48);
+
+        final FrameCache.Lease lease = cache.acquire("a");
+        final FrameCache.Lease copy = lease.copy();
+
+        for (final String identifier : new String[] { "b", "c", "d", "e", "f", "g", "h", "i" }) {
+            FrameCacheTest.record(cache, identifier, 48, 48);
+        }
+
+        assertNull(cache.acquire("a"));
+        assertEquals(9, this.files());
+        assertNull(cache.record("a"));
+
+        lease.release();
+        lease.release();
+        assertEquals(9, this.files());
+
+        copy.release();
+        assertEquals(8, this.files());
+        assertNull(cache.record("a"));
+        assertNotNull(cache.record("a"));
+    }
+
+    @Test
+    public void indexesRecordingsOnDisk() {
+        FrameCacheTest.record(new FrameCache(this.directory, 1L << 20, Runnable::run), "a", 48, 48);
+
+        final FrameCache cache = new FrameCache(this.directory, 1L << 20, Runnable::run);
+
+        assertEquals(1, cache.getSize());
+        assertEquals(100L, cache.getBytes());
+        assertNotNull(cache.acquire("a"));
+    }
+
+}